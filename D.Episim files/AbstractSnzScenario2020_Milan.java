@@ -1,16 +1,24 @@
 package org.matsim.run.modules;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
 import com.google.inject.Provides;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.episim.EpisimConfigGroup;
 import org.matsim.episim.EpisimPerson;
+import org.matsim.episim.TracingConfigGroup;
 import org.matsim.episim.model.AgeDependentProgressionModel;
+import org.matsim.episim.model.ContactModel;
+import org.matsim.episim.model.DefaultContactModel;
+import org.matsim.episim.model.DefaultFaceMaskModel;
+import org.matsim.episim.model.FaceMaskModel;
 import org.matsim.episim.model.ProgressionModel;
 import org.matsim.episim.model.Transition;
+import org.matsim.episim.policy.FixedPolicy;
 
 import javax.inject.Singleton;
+import java.nio.file.Path;
 
 import static org.matsim.episim.model.Transition.to;
 
@@ -24,6 +32,56 @@ public abstract class AbstractSnzScenario2020_Milan extends AbstractModule {
 			"work_ess", "work_noEss", "school", "university", "refreshment", "business", "shop_ess", "shop_noEss", "turism","sport", "leisure", "night"
 	};
 
+	/**
+	 * Replace the input events with a reduced copy containing only the events needed by episim,
+	 * without the events of single occupancy vehicles.
+	 * Can be enabled with {@code -Dmilan.reduceEvents=true}.
+	 *
+	 * @see EventsReducer
+	 */
+	public static boolean REDUCE_EVENTS = Boolean.getBoolean("milan.reduceEvents");
+
+	/**
+	 * Split large workplaces and schools into sub-containers while reducing the events.
+	 * Can be enabled with {@code -Dmilan.splitFacilities=true}, implies {@link #REDUCE_EVENTS}.
+	 *
+	 * @see FacilitySplitter#milan()
+	 */
+	public static boolean SPLIT_FACILITIES = Boolean.getBoolean("milan.splitFacilities");
+
+	/**
+	 * Resolves the events file that should be used as episim input.
+	 * This is always the events xml, runs using the {@link ScenarioInputCache} read the {@link BinaryEvents} next to it
+	 * instead if they are up to date.
+	 */
+	protected static String inputEvents(Path input, String fileName) {
+
+		Path events = input.resolve(fileName);
+
+		if (SPLIT_FACILITIES)
+			return EventsReducer.reduceCached(events, FacilitySplitter.milan()).toString();
+
+		if (REDUCE_EVENTS)
+			return EventsReducer.reduceCached(events).toString();
+
+		return events.toString();
+	}
+
+	/**
+	 * Sets the policy of the scenario, either as {@link FixedPolicy} or compiled,
+	 * depending on {@link MilanEngineConfigGroup#isCompiledPolicy()}.
+	 */
+	protected static void setPolicy(Config config, PolicyCompiler policy) {
+
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+		MilanEngineConfigGroup engineConfig = ConfigUtils.addOrGetModule(config, MilanEngineConfigGroup.class);
+
+		if (engineConfig.isCompiledPolicy())
+			episimConfig.setPolicy(CompiledPolicy.class, policy.buildCompiled());
+		else
+			episimConfig.setPolicy(FixedPolicy.class, policy.build());
+	}
+
 	public static void setContactIntensities(EpisimConfigGroup episimConfig) {
 		episimConfig.getOrAddContainerParams("work_ess")
 				.setContactIntensity(3.0);
@@ -135,10 +193,74 @@ public abstract class AbstractSnzScenario2020_Milan extends AbstractModule {
 
 	@Override
 	protected void configure() {
+		// progression model is bound by the provider below
+	}
+
+	/**
+	 * Age dependent progression model, or {@link EventDrivenProgressionModel}
+	 * if {@link MilanEngineConfigGroup#isEventDrivenProgression()} is set.
+	 */
+	@Provides
+	@Singleton
+	public ProgressionModel progressionModel(Config config, Injector injector) {
+
+		MilanEngineConfigGroup engineConfig = ConfigUtils.addOrGetModule(config, MilanEngineConfigGroup.class);
+
+		if ((engineConfig.getTracingQueueSize() > 0 || engineConfig.getTracingContactsPerDay() > 0) && !engineConfig.isEventDrivenProgression())
+			throw new IllegalArgumentException("milanEngine.tracingQueueSize and tracingContactsPerDay require milanEngine.eventDrivenProgression");
 
-		// Use age dependent progression model
-		bind(ProgressionModel.class).to(AgeDependentProgressionModel.class).in(Singleton.class);
 		// WARNING: This does not affect runs with --config file, especially batch runs !!
+		if (engineConfig.isEventDrivenProgression())
+			return injector.getInstance(EventDrivenProgressionModel.class);
+
+		return injector.getInstance(AgeDependentProgressionModel.class);
+	}
+
+	/**
+	 * Default contact model, which skips containers without contagious persons if {@link MilanEngineConfigGroup#isLazyContainers()}
+	 * and also records contacts in the {@link ContactRingBuffer} if {@link MilanEngineConfigGroup#getTracingContactsPerDay()} is set.
+	 */
+	@Provides
+	@Singleton
+	public ContactModel contactModel(Config config, TracingConfigGroup tracingConfig, Injector injector) {
+
+		MilanEngineConfigGroup engineConfig = ConfigUtils.addOrGetModule(config, MilanEngineConfigGroup.class);
+		ContactModel model = injector.getInstance(DefaultContactModel.class);
+
+		if (engineConfig.isLazyContainers())
+			model = new LazyContactModel(model, tracingConfig);
+
+		// records contacts also in skipped containers
+
+		if (engineConfig.getTracingContactsPerDay() > 0)
+			return new TracingContactModel(model, injector.getInstance(ContactRingBuffer.class));
+
+		return model;
+	}
+
+	/**
+	 * Default face mask model, or {@link MilanFaceMaskModel} if {@link MilanEngineConfigGroup#isMaskAssignment()} is set.
+	 */
+	@Provides
+	@Singleton
+	public FaceMaskModel faceMaskModel(Config config, Injector injector) {
+
+		MilanEngineConfigGroup engineConfig = ConfigUtils.addOrGetModule(config, MilanEngineConfigGroup.class);
+
+		if (engineConfig.isMaskAssignment())
+			return injector.getInstance(MilanFaceMaskModel.class);
+
+		return injector.getInstance(DefaultFaceMaskModel.class);
+	}
+
+	/**
+	 * Contact history shared by the {@link TracingContactModel} and the {@link EventDrivenProgressionModel}.
+	 */
+	@Provides
+	@Singleton
+	public ContactRingBuffer contactRingBuffer(Config config, TracingConfigGroup tracingConfig) {
+		MilanEngineConfigGroup engineConfig = ConfigUtils.addOrGetModule(config, MilanEngineConfigGroup.class);
+		return ContactRingBuffer.create(tracingConfig, engineConfig.getTracingContactsPerDay());
 	}
 
 	/**
@@ -161,6 +283,8 @@ public abstract class AbstractSnzScenario2020_Milan extends AbstractModule {
 		addParams(episimConfig);
 		setContactIntensities(episimConfig);
 
+		ConfigUtils.addOrGetModule(config, MilanEngineConfigGroup.class); //Opzioni motore, disattivate di default
+
 		return config;
 	}
 
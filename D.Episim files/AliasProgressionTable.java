@@ -0,0 +1,513 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import com.typesafe.config.Config;
+import org.matsim.episim.EpisimPerson.DiseaseStatus;
+import org.matsim.episim.model.Transition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Precompiled disease progression, sampled with Walker's alias method.
+ * <p>
+ * For every status and age band, the next status and the number of days until the transition are one joint
+ * discrete distribution. Durations are log-normal with given median and standard deviation, as in
+ * {@link org.matsim.episim.model.Transition#logNormalWithMedianAndStd(double, double)}, rounded to full days.
+ * A transition then costs one random long and one table lookup.
+ * <p>
+ * Samples are packed into an int, see {@link #status(int)} and {@link #days(int)}.
+ */
+public final class AliasProgressionTable {
+
+	/**
+	 * Probability mass of the log-normal tail that is cut off.
+	 */
+	private static final double TAIL = 1e-7;
+
+	private static final DiseaseStatus[] STATUS = DiseaseStatus.values();
+
+	/**
+	 * Parameters of a log-normal transition in the progression config.
+	 */
+	private static final String MU = "mu";
+	private static final String SIGMA = "sigma";
+
+	private final int[] ageBands;
+	private final Table[][] tables;
+
+	/**
+	 * Median and standard deviation of the duration of each transition.
+	 */
+	private final double[][][] durations;
+
+	private AliasProgressionTable(int[] ageBands, Table[][] tables, double[][][] durations) {
+		this.ageBands = ageBands;
+		this.tables = tables;
+		this.durations = durations;
+	}
+
+	/**
+	 * @param ageBands exclusive upper age of each band except the last one, e.g. {@code 10, 20, ..., 80}
+	 */
+	public static Builder builder(int... ageBands) {
+		return new Builder(ageBands);
+	}
+
+	/**
+	 * Table with the transitions of an episim progression config, e.g. {@link AbstractSnzScenario2020_Milan#baseProgressionConfig}.
+	 * Durations are read from the config, which maps each status to the log-normal transitions to its next statuses,
+	 * each given by the {@code mu} and {@code sigma} of {@link Transition#logNormalWithMedianAndStd(double, double)}.
+	 * <p>
+	 * The config has no probabilities, they are the ones of the age dependent progression model: 80% of the
+	 * contagious persons show symptoms, the shares of seriously sick and critical persons are the ones of Verity et al. (2020)
+	 * and Ferguson et al. (2020, Imperial College report 9) in bands of 10 years. Other statuses need a single next status.
+	 *
+	 * @throws IllegalArgumentException if a transition is not log-normal or has no known probability
+	 */
+	public static AliasProgressionTable fromConfig(Config progression) {
+
+		Builder builder = builder(10, 20, 30, 40, 50, 60, 70, 80);
+		for (String f : progression.root().keySet()) {
+			DiseaseStatus from = DiseaseStatus.valueOf(f);
+			Config next = progression.getConfig(f);
+
+			for (String t : next.root().keySet()) {
+				DiseaseStatus to = DiseaseStatus.valueOf(t);
+				Config transition = next.getConfig(t);
+				if (!transition.hasPath(MU) || !transition.hasPath(SIGMA))
+					throw new IllegalArgumentException("Transition from " + from + " to " + to + " is not log-normal: " + transition);
+
+				// inverse of the conversion in logNormalCdf
+				double median = Math.exp(transition.getDouble(MU));
+				double q = Math.exp(Math.pow(transition.getDouble(SIGMA), 2));
+				double std = median * Math.sqrt(q * (q - 1));
+
+				builder.add(from, to, probability(from, to, next.root().keySet().size()), median, std);
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Probability per age band of the age dependent progression model.
+	 */
+	private static double[] probability(DiseaseStatus from, DiseaseStatus to, int alternatives) {
+
+		double[] seriouslySick = {0.001, 0.003, 0.012, 0.032, 0.049, 0.102, 0.166, 0.243, 0.273};
+		double[] critical = {0.05, 0.05, 0.05, 0.05, 0.063, 0.122, 0.274, 0.432, 0.709};
+
+		if (from == DiseaseStatus.contagious && to == DiseaseStatus.showingSymptoms)
+			return constant(0.8, seriouslySick.length);
+		if (from == DiseaseStatus.contagious && to == DiseaseStatus.recovered)
+			return constant(0.2, seriouslySick.length);
+		if (from == DiseaseStatus.showingSymptoms && to == DiseaseStatus.seriouslySick)
+			return seriouslySick;
+		if (from == DiseaseStatus.showingSymptoms && to == DiseaseStatus.recovered)
+			return complement(seriouslySick);
+		if (from == DiseaseStatus.seriouslySick && to == DiseaseStatus.critical)
+			return critical;
+		if (from == DiseaseStatus.seriouslySick && to == DiseaseStatus.recovered)
+			return complement(critical);
+		if (alternatives == 1)
+			return constant(1, seriouslySick.length);
+
+		throw new IllegalArgumentException("No probability for the transition from " + from + " to " + to);
+	}
+
+	private static double[] constant(double p, int bands) {
+		double[] result = new double[bands];
+		Arrays.fill(result, p);
+		return result;
+	}
+
+	private static double[] complement(double[] p) {
+		return Arrays.stream(p).map(v -> 1 - v).toArray();
+	}
+
+	/**
+	 * Age band of an age, unknown ages (negative) use the first band.
+	 */
+	public int band(int age) {
+		int b = 0;
+		while (b < ageBands.length && age >= ageBands[b])
+			b++;
+		return b;
+	}
+
+	/**
+	 * Whether there is a transition from this status.
+	 */
+	public boolean hasTransition(DiseaseStatus from) {
+		return tables[from.ordinal()][0] != null;
+	}
+
+	/**
+	 * Draws next status and days until the transition.
+	 *
+	 * @return packed sample
+	 */
+	public int sample(DiseaseStatus from, int age, SplittableRandom rnd) {
+		return sample(from, age, rnd.nextLong());
+	}
+
+	/**
+	 * Draws next status and days until the transition from 64 random bits.
+	 */
+	public int sample(DiseaseStatus from, int age, long random) {
+		Table t = tables[from.ordinal()][band(age)];
+		if (t == null)
+			throw new IllegalArgumentException("No transition from " + from);
+
+		return t.sample(random);
+	}
+
+	/**
+	 * Longest duration of any transition in days.
+	 */
+	public int getMaxDays() {
+		int max = 0;
+		for (Table[] byBand : tables) {
+			for (Table t : byBand) {
+				if (t == null)
+					continue;
+
+				for (int outcome : t.outcomes) {
+					max = Math.max(max, days(outcome));
+				}
+			}
+		}
+		return max;
+	}
+
+	public static DiseaseStatus status(int sample) {
+		return STATUS[sample >>> 16];
+	}
+
+	public static int days(int sample) {
+		return sample & 0xffff;
+	}
+
+	/**
+	 * Probability of a transition to {@code to} after exactly {@code days} days.
+	 */
+	public double probability(DiseaseStatus from, int age, DiseaseStatus to, int days) {
+		Table t = tables[from.ordinal()][band(age)];
+		if (t == null)
+			return 0;
+
+		int sample = to.ordinal() << 16 | days;
+		for (int i = 0; i < t.outcomes.length; i++) {
+			if (t.outcomes[i] == sample)
+				return t.probabilities[i];
+		}
+		return 0;
+	}
+
+	/**
+	 * Median and standard deviation of the duration of a transition, or null if there is none.
+	 */
+	double[] getDuration(DiseaseStatus from, DiseaseStatus to) {
+		return durations[from.ordinal()][to.ordinal()];
+	}
+
+	/**
+	 * Cumulative distribution function of the log-normal distribution with median and standard deviation.
+	 */
+	static double logNormalCdf(double x, double median, double std) {
+		if (x <= 0)
+			return 0;
+
+		double mu = Math.log(median);
+		double sigma = Math.sqrt(Math.log((1 + Math.sqrt(1 + 4 * std * std / (median * median))) / 2));
+		return 0.5 * erfc(-(Math.log(x) - mu) / (sigma * Math.sqrt(2)));
+	}
+
+	/**
+	 * Complementary error function with a relative error below 1.2e-7 (Numerical Recipes, erfcc).
+	 */
+	private static double erfc(double x) {
+		double z = Math.abs(x);
+		double t = 1 / (1 + 0.5 * z);
+		double r = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+				+ t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+				+ t * (-0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? r : 2 - r;
+	}
+
+	/**
+	 * Probabilities of each day, for a duration rounded to full days.
+	 */
+	static double[] discretize(double median, double std) {
+		List<Double> p = new ArrayList<>();
+		double cdf = 0;
+		for (int d = 0; cdf < 1 - TAIL && d < 0xffff; d++) {
+			double next = logNormalCdf(d + 0.5, median, std);
+			p.add(next - cdf);
+			cdf = next;
+		}
+
+		double sum = cdf;
+		return p.stream().mapToDouble(v -> v / sum).toArray();
+	}
+
+	/**
+	 * Alias table of one status and age band.
+	 */
+	private static final class Table {
+
+		private final int[] outcomes;
+		private final double[] probabilities;
+		private final long[] thresholds;
+		private final int[] alias;
+
+		private Table(int[] outcomes, double[] probabilities) {
+			this.outcomes = outcomes;
+			this.probabilities = probabilities;
+
+			int n = outcomes.length;
+			thresholds = new long[n];
+			alias = new int[n];
+
+			// Vose's construction of the alias table
+			double[] scaled = new double[n];
+			int[] small = new int[n];
+			int[] large = new int[n];
+			int ns = 0, nl = 0;
+			for (int i = 0; i < n; i++) {
+				scaled[i] = probabilities[i] * n;
+				if (scaled[i] < 1) small[ns++] = i;
+				else large[nl++] = i;
+			}
+
+			while (ns > 0 && nl > 0) {
+				int s = small[--ns];
+				int l = large[--nl];
+				thresholds[s] = threshold(scaled[s]);
+				alias[s] = l;
+				scaled[l] = scaled[l] + scaled[s] - 1;
+				if (scaled[l] < 1) small[ns++] = l;
+				else large[nl++] = l;
+			}
+
+			// remaining columns are full, up to rounding errors
+			while (nl > 0) thresholds[large[--nl]] = 1L << 32;
+			while (ns > 0) thresholds[small[--ns]] = 1L << 32;
+		}
+
+		private static long threshold(double p) {
+			return Math.min(1L << 32, Math.round(p * (1L << 32)));
+		}
+
+		/**
+		 * Upper 32 bits select the column, lower 32 bits decide between column and alias.
+		 */
+		private int sample(long r) {
+			int column = (int) (((r >>> 32) * outcomes.length) >>> 32);
+			return (r & 0xffffffffL) < thresholds[column] ? outcomes[column] : outcomes[alias[column]];
+		}
+	}
+
+	public static final class Builder {
+
+		private final int[] ageBands;
+		private final List<List<Spec>> transitions = new ArrayList<>();
+
+		private Builder(int[] ageBands) {
+			for (int i = 1; i < ageBands.length; i++) {
+				if (ageBands[i] <= ageBands[i - 1])
+					throw new IllegalArgumentException("Age bands must be increasing: " + Arrays.toString(ageBands));
+			}
+
+			this.ageBands = ageBands.clone();
+			for (int i = 0; i < STATUS.length; i++) {
+				transitions.add(new ArrayList<>());
+			}
+		}
+
+		/**
+		 * Adds a transition with the same probability for all age bands.
+		 */
+		public Builder add(DiseaseStatus from, DiseaseStatus to, double probability, double median, double std) {
+			double[] p = new double[ageBands.length + 1];
+			Arrays.fill(p, probability);
+			return add(from, to, p, median, std);
+		}
+
+		/**
+		 * Adds a transition with a probability per age band.
+		 */
+		public Builder add(DiseaseStatus from, DiseaseStatus to, double[] probability, double median, double std) {
+			if (probability.length != ageBands.length + 1)
+				throw new IllegalArgumentException("Need one probability per age band, got " + probability.length);
+
+			transitions.get(from.ordinal()).add(new Spec(to, probability.clone(), median, std));
+			return this;
+		}
+
+		public AliasProgressionTable build() {
+
+			int bands = ageBands.length + 1;
+			Table[][] tables = new Table[STATUS.length][bands];
+			double[][][] durations = new double[STATUS.length][STATUS.length][];
+
+			for (int from = 0; from < STATUS.length; from++) {
+				List<Spec> list = transitions.get(from);
+				if (list.isEmpty())
+					continue;
+
+				for (Spec t : list) {
+					if (durations[from][t.to.ordinal()] != null)
+						throw new IllegalStateException("Duplicate transition from " + STATUS[from] + " to " + t.to);
+
+					durations[from][t.to.ordinal()] = new double[]{t.median, t.std};
+				}
+
+				for (int b = 0; b < bands; b++) {
+					List<Integer> outcomes = new ArrayList<>();
+					List<Double> probabilities = new ArrayList<>();
+					double sum = 0;
+
+					for (Spec t : list) {
+						double p = t.probability[b];
+						sum += p;
+						if (p == 0)
+							continue;
+
+						double[] days = discretize(t.median, t.std);
+						for (int d = 0; d < days.length; d++) {
+							if (days[d] == 0)
+								continue;
+
+							outcomes.add(t.to.ordinal() << 16 | d);
+							probabilities.add(p * days[d]);
+						}
+					}
+
+					if (Math.abs(sum - 1) > 1e-9)
+						throw new IllegalStateException("Probabilities of transitions from " + STATUS[from] + " in age band " + b + " sum up to " + sum);
+
+					tables[from][b] = new Table(outcomes.stream().mapToInt(Integer::intValue).toArray(),
+							probabilities.stream().mapToDouble(Double::doubleValue).toArray());
+				}
+			}
+
+			return new AliasProgressionTable(ageBands, tables, durations);
+		}
+	}
+
+	private static final class Spec {
+		private final DiseaseStatus to;
+		private final double[] probability;
+		private final double median;
+		private final double std;
+
+		private Spec(DiseaseStatus to, double[] probability, double median, double std) {
+			this.to = to;
+			this.probability = probability;
+			this.median = median;
+			this.std = std;
+		}
+	}
+
+	/**
+	 * Checks the sampled distributions of a table against the exact discrete probabilities and the continuous
+	 * log-normal durations.
+	 * <p>
+	 * The share of every outcome and the maximum deviation of the empirical duration cdf from the log-normal cdf at
+	 * {@code d + 0.5} must both stay within {@code tolerance} plus the sampling error, i.e. 3.3 standard deviations of
+	 * the share and the 99.9% Kolmogorov-Smirnov bound {@code 1.95 / sqrt(samples)} of the cdf.
+	 *
+	 * @param table     table to check
+	 * @param samples   number of samples per status and age
+	 * @param tolerance allowed absolute deviation in addition to the sampling error
+	 * @throws AssertionError listing every outcome outside of the tolerance
+	 */
+	public static void check(AliasProgressionTable table, int samples, double tolerance) {
+
+		SplittableRandom rnd = new SplittableRandom(1);
+
+		int[] ages = {5, 45, 85};
+		List<String> failures = new ArrayList<>();
+
+		for (int age : ages) {
+			for (DiseaseStatus from : STATUS) {
+				if (!table.hasTransition(from))
+					continue;
+
+				int[][] counts = new int[STATUS.length][0xffff];
+				for (int i = 0; i < samples; i++) {
+					int s = table.sample(from, age, rnd);
+					counts[s >>> 16][days(s)]++;
+				}
+
+				for (DiseaseStatus to : STATUS) {
+					int total = Arrays.stream(counts[to.ordinal()]).sum();
+					double expected = 0;
+					for (int d = 0; d < 0xffff; d++) expected += table.probability(from, age, to, d);
+					if (total == 0 && expected == 0)
+						continue;
+
+					double share = (double) total / samples;
+					double allowedShare = tolerance + 3.3 * Math.sqrt(expected * (1 - expected) / samples);
+					if (Math.abs(share - expected) > allowedShare)
+						failures.add(String.format("%s -> %s at age %d: share %.5f, expected %.5f", from, to, age, share, expected));
+
+					if (total == 0)
+						continue;
+
+					double[] params = table.getDuration(from, to);
+					double deviation = 0;
+					int cumulative = 0;
+					for (int d = 0; d < 200; d++) {
+						cumulative += counts[to.ordinal()][d];
+						deviation = Math.max(deviation, Math.abs((double) cumulative / total - logNormalCdf(d + 0.5, params[0], params[1])));
+					}
+
+					double allowedDeviation = tolerance + 1.95 / Math.sqrt(total);
+					if (deviation > allowedDeviation)
+						failures.add(String.format("%s -> %s at age %d: cdf deviation %.5f exceeds %.5f (%d samples)",
+								from, to, age, deviation, allowedDeviation, total));
+				}
+			}
+		}
+
+		if (!failures.isEmpty())
+			throw new AssertionError("Sampled progression deviates from its distributions:\n" + String.join("\n", failures));
+	}
+
+	/**
+	 * Usage: {@code AliasProgressionTable [samples] [tolerance]}, runs {@link #check(AliasProgressionTable, int, double)}
+	 * on the table of {@link AbstractSnzScenario2020_Milan#baseProgressionConfig}.
+	 */
+	public static void main(String[] args) {
+
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		double tolerance = args.length > 1 ? Double.parseDouble(args[1]) : 0.002;
+
+		check(fromConfig(AbstractSnzScenario2020_Milan.baseProgressionConfig(Transition.config()).build()), samples, tolerance);
+		System.out.println("Sampled progression is within tolerance " + tolerance);
+	}
+}
@@ -0,0 +1,409 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary replay format for the events used by episim.
+ * <p>
+ * The file starts with string tables for persons, facilities, links, vehicles and activity types,
+ * followed by fixed size records with dense int ids and int second timestamps.
+ * Files are read through a read-only memory mapping, so several runs on the same machine share the page cache.
+ * <p>
+ * The {@link ScenarioInputCache} reads the events of a run from this format when {@link #binaryFileFor(Path)} exists
+ * next to the events xml and is not older than it, streamed as MATSim events with {@link #forEachEvent(Consumer)}.
+ * It is also read by tools working on dense ids, e.g. {@link IdRegistry#registerAll(BinaryEvents)}.
+ */
+public final class BinaryEvents {
+
+	private static final Logger log = LogManager.getLogger(BinaryEvents.class);
+
+	private static final int MAGIC = 0x45504556; // "EPEV"
+	private static final int VERSION = 2;
+
+	/**
+	 * Size of one event record in bytes: time, type, flags, activity type, person, target.
+	 */
+	static final int RECORD_BYTES = 4 + 1 + 1 + 2 + 4 + 4;
+
+	public static final byte ACT_START = 0;
+	public static final byte ACT_END = 1;
+	public static final byte ENTERS_VEHICLE = 2;
+	public static final byte LEAVES_VEHICLE = 3;
+
+	/**
+	 * Flag set if the activity target is a link and not a facility.
+	 */
+	private static final byte FLAG_LINK = 1;
+
+	private final MappedByteBuffer buffer;
+	private final String[] persons;
+	private final String[] containers;
+	private final String[] links;
+	private final String[] vehicles;
+	private final String[] actTypes;
+	private final int offset;
+	private final int size;
+
+	private BinaryEvents(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+
+		if (buffer.getInt() != MAGIC)
+			throw new IllegalArgumentException("Not a binary events file.");
+
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IllegalArgumentException("Unsupported binary events version " + version);
+
+		persons = readTable(buffer);
+		containers = readTable(buffer);
+		links = readTable(buffer);
+		vehicles = readTable(buffer);
+		actTypes = readTable(buffer);
+
+		size = buffer.getInt();
+		offset = buffer.position();
+	}
+
+	/**
+	 * Returns the path of the binary file belonging to {@code events}, e.g. {@code output_events-0.25.bin}.
+	 */
+	public static Path binaryFileFor(Path events) {
+		String name = events.getFileName().toString();
+		String base = name.endsWith(".xml.gz") ? name.substring(0, name.length() - ".xml.gz".length()) : name;
+		return events.resolveSibling(base + ".bin");
+	}
+
+	/**
+	 * Memory maps an existing binary events file.
+	 */
+	public static BinaryEvents open(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new BinaryEvents(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Converts a MATSim events file. Only the events retained by {@link EventsReducer} are written.
+	 */
+	public static void convert(Path in, Path out) throws IOException {
+
+		IdRegistry ids = new IdRegistry();
+
+		// records are kept in memory until the string tables are complete
+		ByteBuffer[] holder = {ByteBuffer.allocate(RECORD_BYTES * 1024)};
+		int[] n = {0};
+
+		EventsReducer.forEachEvent(in, attributes -> {
+
+			byte type;
+			switch (attributes.get("type")) {
+				case "actstart":
+					type = ACT_START;
+					break;
+				case "actend":
+					type = ACT_END;
+					break;
+				case "PersonEntersVehicle":
+					type = ENTERS_VEHICLE;
+					break;
+				case "PersonLeavesVehicle":
+					type = LEAVES_VEHICLE;
+					break;
+				default:
+					return;
+			}
+
+			ByteBuffer buf = holder[0];
+			if (buf.remaining() < RECORD_BYTES) {
+				buf = ByteBuffer.allocate(buf.capacity() * 2).put(buf.flip());
+				holder[0] = buf;
+			}
+
+			byte flags = 0;
+			short actType = -1;
+			int target;
+			if (type == ACT_START || type == ACT_END) {
+				String facility = attributes.get("facility");
+				if (facility != null)
+					target = ids.register(IdRegistry.Kind.container, facility);
+				else {
+					target = ids.register(IdRegistry.Kind.link, attributes.get("link"));
+					flags |= FLAG_LINK;
+				}
+				actType = (short) ids.register(IdRegistry.Kind.activityType, attributes.get("actType"));
+			} else
+				target = ids.register(IdRegistry.Kind.vehicle, attributes.get("vehicle"));
+
+			buf.putInt((int) Math.round(Double.parseDouble(attributes.get("time"))));
+			buf.put(type);
+			buf.put(flags);
+			buf.putShort(actType);
+			buf.putInt(ids.register(IdRegistry.Kind.person, attributes.get("person")));
+			buf.putInt(target);
+			n[0]++;
+		});
+
+		if (ids.size(IdRegistry.Kind.activityType) > Short.MAX_VALUE)
+			throw new IllegalStateException("Too many activity types: " + ids.size(IdRegistry.Kind.activityType));
+
+		Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			writeTable(os, ids, IdRegistry.Kind.person);
+			writeTable(os, ids, IdRegistry.Kind.container);
+			writeTable(os, ids, IdRegistry.Kind.link);
+			writeTable(os, ids, IdRegistry.Kind.vehicle);
+			writeTable(os, ids, IdRegistry.Kind.activityType);
+			os.writeInt(n[0]);
+
+			ByteBuffer buf = holder[0].flip();
+			os.write(buf.array(), 0, buf.limit());
+		}
+
+		Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+
+		log.info("Converted {} events to {} ({} persons, {} facilities, {} links, {} vehicles, {} activity types, {} bytes)",
+				n[0], out, ids.size(IdRegistry.Kind.person), ids.size(IdRegistry.Kind.container), ids.size(IdRegistry.Kind.link),
+				ids.size(IdRegistry.Kind.vehicle), ids.size(IdRegistry.Kind.activityType), Files.size(out));
+	}
+
+	private static void writeTable(DataOutputStream os, IdRegistry ids, IdRegistry.Kind kind) throws IOException {
+		os.writeInt(ids.size(kind));
+		for (int i = 0; i < ids.size(kind); i++) {
+			byte[] bytes = ids.id(kind, i).getBytes(StandardCharsets.UTF_8);
+			os.writeShort(bytes.length);
+			os.write(bytes);
+		}
+	}
+
+	private static String[] readTable(ByteBuffer buffer) {
+		String[] table = new String[buffer.getInt()];
+		byte[] tmp = new byte[256];
+		for (int i = 0; i < table.length; i++) {
+			int length = Short.toUnsignedInt(buffer.getShort());
+			if (tmp.length < length)
+				tmp = new byte[length];
+
+			buffer.get(tmp, 0, length);
+			table[i] = new String(tmp, 0, length, StandardCharsets.UTF_8);
+		}
+		return table;
+	}
+
+	/**
+	 * Number of events in the file.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int time(int event) {
+		return buffer.getInt(offset + event * RECORD_BYTES);
+	}
+
+	public byte type(int event) {
+		return buffer.get(offset + event * RECORD_BYTES + 4);
+	}
+
+	/**
+	 * Whether the container of an activity event refers to a link.
+	 */
+	public boolean isLink(int event) {
+		return (buffer.get(offset + event * RECORD_BYTES + 5) & FLAG_LINK) != 0;
+	}
+
+	/**
+	 * Dense activity type index, or -1 for vehicle events.
+	 */
+	public int actType(int event) {
+		return buffer.getShort(offset + event * RECORD_BYTES + 6);
+	}
+
+	/**
+	 * Dense person index.
+	 */
+	public int person(int event) {
+		return buffer.getInt(offset + event * RECORD_BYTES + 8);
+	}
+
+	/**
+	 * Dense facility or link index for activity events, see {@link #isLink(int)}, dense vehicle index for vehicle events.
+	 */
+	public int target(int event) {
+		return buffer.getInt(offset + event * RECORD_BYTES + 12);
+	}
+
+	public String personId(int index) {
+		return persons[index];
+	}
+
+	/**
+	 * Facility id of a target index, only for activity events that are not on a link.
+	 */
+	public String containerId(int index) {
+		return containers[index];
+	}
+
+	public String linkId(int index) {
+		return links[index];
+	}
+
+	public String vehicleId(int index) {
+		return vehicles[index];
+	}
+
+	public String actTypeName(int index) {
+		return actTypes[index];
+	}
+
+	public int numberOfPersons() {
+		return persons.length;
+	}
+
+	public int numberOfContainers() {
+		return containers.length;
+	}
+
+	public int numberOfLinks() {
+		return links.length;
+	}
+
+	public int numberOfVehicles() {
+		return vehicles.length;
+	}
+
+	public int numberOfActTypes() {
+		return actTypes.length;
+	}
+
+	/**
+	 * Size of the mapped file in bytes.
+	 */
+	public long byteSize() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Creates the MATSim events one by one, in file order, and passes them to {@code consumer}.
+	 * Events are not retained, so memory stays bounded by the ids. Ids are created only once per person, container and vehicle.
+	 */
+	public void forEachEvent(Consumer<? super Event> consumer) {
+
+		@SuppressWarnings("unchecked")
+		Id<Person>[] personIds = new Id[persons.length];
+		@SuppressWarnings("unchecked")
+		Id<Link>[] linkIds = new Id[links.length];
+		@SuppressWarnings("unchecked")
+		Id<ActivityFacility>[] facilityIds = new Id[containers.length];
+		@SuppressWarnings("unchecked")
+		Id<Vehicle>[] vehicleIds = new Id[vehicles.length];
+
+		for (int i = 0; i < size; i++) {
+
+			int p = person(i);
+			Id<Person> person = personIds[p];
+			if (person == null) {
+				person = Id.createPersonId(persons[p]);
+				personIds[p] = person;
+			}
+
+			int target = target(i);
+			byte type = type(i);
+
+			if (type == ACT_START || type == ACT_END) {
+
+				Id<Link> link = null;
+				Id<ActivityFacility> facility = null;
+				if (isLink(i)) {
+					link = linkIds[target];
+					if (link == null) {
+						link = Id.createLinkId(links[target]);
+						linkIds[target] = link;
+					}
+				} else {
+					facility = facilityIds[target];
+					if (facility == null) {
+						facility = Id.create(containers[target], ActivityFacility.class);
+						facilityIds[target] = facility;
+					}
+				}
+
+				String actType = actTypes[actType(i)];
+				if (type == ACT_START)
+					consumer.accept(new ActivityStartEvent(time(i), person, link, facility, actType, null));
+				else
+					consumer.accept(new ActivityEndEvent(time(i), person, link, facility, actType));
+
+			} else {
+				Id<Vehicle> vehicle = vehicleIds[target];
+				if (vehicle == null) {
+					vehicle = Id.createVehicleId(vehicles[target]);
+					vehicleIds[target] = vehicle;
+				}
+				if (type == ENTERS_VEHICLE)
+					consumer.accept(new PersonEntersVehicleEvent(time(i), person, vehicle));
+				else
+					consumer.accept(new PersonLeavesVehicleEvent(time(i), person, vehicle));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			System.err.println("Usage: BinaryEvents <events.xml.gz> [output.bin]");
+			System.exit(1);
+		}
+
+		Path in = Path.of(args[0]);
+		convert(in, args.length > 1 ? Path.of(args[1]) : binaryFileFor(in));
+	}
+}
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Persons scheduled by the day something is due, as a ring of int buckets.
+ * <p>
+ * The ring covers more days than the longest delay, so each bucket only holds one day.
+ * Scheduling appends to a bucket and draining a day passes over exactly the persons due that day.
+ * Entries can not be removed, the consumer has to skip persons whose schedule has changed.
+ */
+public final class CalendarQueue {
+
+	private final int[][] buckets;
+	private final int[] sizes;
+	private final int mask;
+
+	private long size = 0;
+
+	/**
+	 * @param horizon longest delay in days that can be scheduled
+	 */
+	public CalendarQueue(int horizon) {
+		int n = Integer.highestOneBit(Math.max(1, horizon)) << 1;
+		buckets = new int[n][8];
+		sizes = new int[n];
+		mask = n - 1;
+	}
+
+	/**
+	 * Schedules a person for a day after today and within the horizon.
+	 */
+	public void schedule(int person, int today, int day) {
+		if (day <= today || day - today > mask)
+			throw new IllegalArgumentException("Day " + day + " is not within the horizon of day " + today);
+
+		int b = day & mask;
+		if (sizes[b] == buckets[b].length)
+			buckets[b] = Arrays.copyOf(buckets[b], buckets[b].length * 2);
+
+		buckets[b][sizes[b]++] = person;
+		size++;
+	}
+
+	/**
+	 * Passes all persons scheduled for this day to the consumer and empties the bucket.
+	 *
+	 * @return number of persons
+	 */
+	public int drain(int day, IntConsumer consumer) {
+		int b = day & mask;
+		int n = sizes[b];
+		int[] bucket = buckets[b];
+
+		for (int i = 0; i < n; i++) {
+			consumer.accept(bucket[i]);
+		}
+
+		sizes[b] = 0;
+		size -= n;
+		return n;
+	}
+
+	/**
+	 * Number of scheduled entries, including outdated ones.
+	 */
+	public long size() {
+		return size;
+	}
+}
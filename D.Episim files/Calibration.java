@@ -0,0 +1,390 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.episim.EpisimConfigGroup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calibrates scenario parameters, e.g. ci corrections and contact intensities, against observed daily cases.
+ * <p>
+ * Uses differential evolution (DE/rand/1/bin), all candidates of a generation are simulated concurrently.
+ * Candidates are simulated in stages using episim snapshots. After every stage the error of the partial trajectory
+ * is compared with the error of the best candidate at the same day, clearly worse candidates are aborted.
+ */
+public final class Calibration {
+
+	private static final Logger log = LogManager.getLogger(Calibration.class);
+
+	private final Class<? extends AbstractSnzScenario2020_Milan> scenario;
+	private final List<ScenarioParameter> parameters;
+	private final SortedMap<LocalDate, Double> observed;
+	private final int iterations;
+	private final int threads;
+
+	private String column = "nShowingSymptomsCumulative";
+	private int populationSize = 12;
+	private int generations = 15;
+	private double mutation = 0.7;
+	private double crossover = 0.9;
+	private int stageDays = 14;
+	private double abortMargin = 0.25;
+	private double scale = 4;
+	private long seed = 4711;
+
+	private final AtomicInteger candidates = new AtomicInteger();
+	private volatile Result best;
+
+	/**
+	 * @param observed   observed new cases per day
+	 * @param iterations number of simulated days of every candidate
+	 */
+	public Calibration(Class<? extends AbstractSnzScenario2020_Milan> scenario, List<ScenarioParameter> parameters,
+					   SortedMap<LocalDate, Double> observed, int iterations, int threads) {
+		this.scenario = scenario;
+		this.parameters = parameters;
+		this.observed = observed;
+		this.iterations = iterations;
+		this.threads = threads;
+	}
+
+	/**
+	 * Reads observed cases from a csv file with the columns {@code date,cases}.
+	 */
+	public static SortedMap<LocalDate, Double> readObserved(Path csv) throws IOException {
+		SortedMap<LocalDate, Double> observed = new TreeMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(csv)) {
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank())
+					continue;
+				String[] row = line.split("[,;\t]");
+				observed.put(LocalDate.parse(row[0].trim()), Double.parseDouble(row[1].trim()));
+			}
+		}
+		return observed;
+	}
+
+	/**
+	 * Cumulative column of {@code infections.txt} from which simulated daily cases are derived.
+	 */
+	public void setColumn(String column) {
+		this.column = column;
+	}
+
+	/**
+	 * Number of candidates, at least 4 since every mutation combines three other candidates.
+	 */
+	public void setPopulationSize(int populationSize) {
+		if (populationSize < 4)
+			throw new IllegalArgumentException("Population size must be at least 4, got " + populationSize);
+
+		this.populationSize = populationSize;
+	}
+
+	public void setGenerations(int generations) {
+		this.generations = generations;
+	}
+
+	/**
+	 * Length of one simulation stage, after which aborting a candidate is considered.
+	 */
+	public void setStageDays(int stageDays) {
+		this.stageDays = stageDays;
+	}
+
+	/**
+	 * Candidates are aborted if their partial error exceeds the one of the best candidate by this fraction.
+	 */
+	public void setAbortMargin(double abortMargin) {
+		this.abortMargin = abortMargin;
+	}
+
+	/**
+	 * Factor applied to simulated cases before comparing, i.e. the inverse of the sample size.
+	 */
+	public void setScale(double scale) {
+		this.scale = scale;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs the calibration and returns the best parameter values found.
+	 */
+	public double[] run() throws InterruptedException, IOException {
+
+		AbstractSnzScenario2020_Milan module = MultiScenarioRunner.instantiate(scenario);
+		Path output = Path.of(module.config().controler().getOutputDirectory() + "-calibration");
+		Files.createDirectories(output);
+
+		SplittableRandom rnd = new SplittableRandom(seed);
+		int dim = parameters.size();
+
+		double[][] population = new double[populationSize][dim];
+		Result[] results = new Result[populationSize];
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try (BufferedWriter writer = Files.newBufferedWriter(output.resolve("calibration.tsv"))) {
+
+			writer.write("candidate\tgeneration");
+			for (ScenarioParameter p : parameters) writer.write("\t" + p.getName());
+			writer.write("\terror\tdays\taborted");
+			writer.newLine();
+
+			for (double[] x : population) {
+				for (int j = 0; j < dim; j++) x[j] = parameters.get(j).scale(rnd.nextDouble());
+			}
+
+			Result[] initial = evaluate(executor, population, output);
+			System.arraycopy(initial, 0, results, 0, populationSize);
+			log(writer, 0, population, initial);
+
+			for (int g = 1; g <= generations; g++) {
+
+				double[][] trials = new double[populationSize][];
+				for (int i = 0; i < populationSize; i++) {
+					trials[i] = mutate(population, i, rnd);
+				}
+
+				Result[] trialResults = evaluate(executor, trials, output);
+				log(writer, g, trials, trialResults);
+
+				for (int i = 0; i < populationSize; i++) {
+					if (trialResults[i].error <= results[i].error) {
+						population[i] = trials[i];
+						results[i] = trialResults[i];
+					}
+				}
+
+				log.info("Generation {}: best error {} at {}", g, best.error, Arrays.toString(best.values));
+			}
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return best.values;
+	}
+
+	private double[] mutate(double[][] population, int i, SplittableRandom rnd) {
+
+		int dim = parameters.size();
+		int a, b, c;
+		do a = rnd.nextInt(populationSize); while (a == i);
+		do b = rnd.nextInt(populationSize); while (b == i || b == a);
+		do c = rnd.nextInt(populationSize); while (c == i || c == a || c == b);
+
+		double[] trial = population[i].clone();
+		int forced = rnd.nextInt(dim);
+		for (int j = 0; j < dim; j++) {
+			if (j == forced || rnd.nextDouble() < crossover)
+				trial[j] = parameters.get(j).clamp(population[a][j] + mutation * (population[b][j] - population[c][j]));
+		}
+		return trial;
+	}
+
+	private Result[] evaluate(ExecutorService executor, double[][] candidates, Path output) throws InterruptedException {
+
+		List<Callable<Result>> tasks = new ArrayList<>();
+		for (double[] x : candidates) {
+			int id = this.candidates.getAndIncrement();
+			tasks.add(() -> evaluate(id, x, output.resolve("candidate" + id)));
+		}
+
+		Result[] results = new Result[candidates.length];
+		List<Future<Result>> futures = executor.invokeAll(tasks);
+		for (int i = 0; i < results.length; i++) {
+			try {
+				results[i] = futures.get(i).get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Candidate " + Arrays.toString(candidates[i]) + " failed", e.getCause());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Simulates one candidate stage by stage, continuing each stage from the snapshot of the previous one.
+	 */
+	private Result evaluate(int id, double[] x, Path output) throws IOException {
+
+		List<Double> partial = new ArrayList<>();
+		Path snapshot = null;
+		try {
+			for (int day = Math.min(stageDays, iterations); ; day = Math.min(day + stageDays, iterations)) {
+
+				AbstractSnzScenario2020_Milan module = MultiScenarioRunner.instantiate(scenario);
+				Config config = module.config();
+				for (int j = 0; j < x.length; j++) {
+					parameters.get(j).apply(config, x[j]);
+				}
+
+				config.controler().setOutputDirectory(output.toString());
+				config.global().setRandomSeed(seed);
+
+				EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+				episimConfig.setSnapshotInterval(stageDays);
+				if (snapshot != null)
+					episimConfig.setStartFromSnapshot(snapshot.toString());
+
+				MultiScenarioRunner.runScenario(module, config, day, ScenarioInputCache.get().module(config));
+
+				double error = error(output, episimConfig.getStartDate());
+				partial.add(error);
+
+				Result current = best;
+				int stage = partial.size() - 1;
+				if (day < iterations && current != null && stage < current.partial.size()
+						&& error > current.partial.get(stage) * (1 + abortMargin)) {
+					log.info("Aborting candidate {} after {} days, error {} vs. {}", id, day, error, current.partial.get(stage));
+					return new Result(id, x, partial, day, true);
+				}
+
+				if (day >= iterations)
+					return update(new Result(id, x, partial, day, false));
+
+				snapshot = ForkRunner.latestSnapshot(output).orElseThrow(() -> new IllegalStateException("No snapshot in " + output));
+			}
+		} finally {
+			EnsembleRunner.delete(output);
+		}
+	}
+
+	private synchronized Result update(Result result) {
+		if (best == null || result.error < best.error)
+			best = result;
+		return result;
+	}
+
+	/**
+	 * Squared error of log daily cases over all observed days covered by the run.
+	 */
+	private double error(Path output, LocalDate startDate) throws IOException {
+
+		SortedMap<Integer, double[]> values = InfectionsOutput.read(output, List.of(column));
+
+		double error = 0;
+		double previous = 0;
+		for (Map.Entry<Integer, double[]> e : values.entrySet()) {
+			double cumulative = e.getValue()[0];
+			double cases = (cumulative - previous) * scale;
+			previous = cumulative;
+
+			// day 1 is the start date
+			Double obs = observed.get(startDate.plusDays(e.getKey() - 1));
+			if (obs != null) {
+				double d = Math.log1p(cases) - Math.log1p(obs);
+				error += d * d;
+			}
+		}
+		return error;
+	}
+
+	private synchronized void log(BufferedWriter writer, int generation, double[][] candidates, Result[] results) throws IOException {
+		for (int i = 0; i < candidates.length; i++) {
+			writer.write(results[i].id + "\t" + generation);
+			for (double v : candidates[i]) writer.write("\t" + v);
+			writer.write("\t" + results[i].error + "\t" + results[i].days + "\t" + results[i].aborted);
+			writer.newLine();
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Usage: {@code Calibration <observed.csv> <iterations> <threads>}, calibrates {@link ZonaGialla_Tracciamento}.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		if (args.length < 3) {
+			System.err.println("Usage: Calibration <observed.csv> <iterations> <threads>");
+			System.exit(1);
+		}
+
+		List<ScenarioParameter> parameters = List.of(
+				ScenarioParameter.zonaGiallaCiCorrection("2020-03-01", 0.1, 1.0),
+				ScenarioParameter.contactIntensity("home", 0.3, 1.5),
+				ScenarioParameter.contactIntensity("work_ess", 1.0, 6.0),
+				ScenarioParameter.contactIntensity("work_noEss", 1.0, 6.0),
+				ScenarioParameter.contactIntensity("school", 2.0, 12.0),
+				ScenarioParameter.contactIntensity("leisure", 2.0, 10.0),
+				ScenarioParameter.contactIntensity("pt", 5.0, 20.0)
+		);
+
+		Calibration calibration = new Calibration(ZonaGialla_Tracciamento.class, parameters,
+				readObserved(Path.of(args[0])), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+
+		double[] result = calibration.run();
+		for (int i = 0; i < result.length; i++) {
+			System.out.println(parameters.get(i).getName() + " = " + result[i]);
+		}
+	}
+
+	/**
+	 * Evaluation of one candidate.
+	 */
+	private static final class Result {
+
+		/**
+		 * Candidate id, also used for the name of the output directory.
+		 */
+		private final int id;
+		private final double[] values;
+		private final List<Double> partial;
+		private final int days;
+		private final boolean aborted;
+		private final double error;
+
+		private Result(int id, double[] values, List<Double> partial, int days, boolean aborted) {
+			this.id = id;
+			this.values = values;
+			this.partial = partial;
+			this.days = days;
+			this.aborted = aborted;
+			this.error = aborted ? Double.POSITIVE_INFINITY : partial.get(partial.size() - 1);
+		}
+	}
+}
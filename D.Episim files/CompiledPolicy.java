@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.Config;
+import org.matsim.episim.EpisimReporting;
+import org.matsim.episim.policy.Restriction;
+import org.matsim.episim.policy.ShutdownPolicy;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Policy that applies a {@link RestrictionMatrix} compiled from the config of {@link PolicyCompiler#buildCompiled()}.
+ * Same results as the {@link org.matsim.episim.policy.FixedPolicy}, but the entries are merged once at init
+ * and restrictions are only updated on days where they change or a ramp is in progress.
+ */
+public final class CompiledPolicy extends ShutdownPolicy {
+
+	private RestrictionMatrix matrix;
+	private int[] applied;
+
+	public CompiledPolicy(Config config) {
+		super(config);
+	}
+
+	@Override
+	public void init(LocalDate start, ImmutableMap<String, Restriction> restrictions) {
+		matrix = PolicyCompiler.compile(config, start, new ArrayList<>(restrictions.keySet()));
+		applied = new int[restrictions.size()];
+		Arrays.fill(applied, -1);
+
+		apply(0, restrictions);
+	}
+
+	@Override
+	public void updateRestrictions(EpisimReporting.InfectionReport report, ImmutableMap<String, Restriction> restrictions) {
+		apply(matrix.day(LocalDate.parse(report.date)), restrictions);
+	}
+
+	private void apply(int day, ImmutableMap<String, Restriction> restrictions) {
+		List<String> activities = matrix.getActivities();
+		for (int i = 0; i < activities.size(); i++) {
+			int state = matrix.state(day, i);
+			if (state == applied[i] && !matrix.isRamping(day, i))
+				continue;
+
+			restrictions.get(activities.get(i)).update(matrix.restriction(day, i));
+			applied[i] = state;
+		}
+	}
+
+	public RestrictionMatrix getMatrix() {
+		return matrix;
+	}
+}
@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.episim.EpisimPerson;
+import org.matsim.episim.TracingConfigGroup;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Contact history for tracing with a fixed size per person and day.
+ * <p>
+ * A person gets {@code tracingPeriod + 1} day slots of {@code contactsPerDay} entries when its first contact is recorded,
+ * in shared int arrays. Slots are reused by day modulo the slot count, so a slot only holds contacts of days older than
+ * the tracing period when it is overwritten. Contacts beyond the limit of a day are dropped and counted, they never
+ * evict contacts of other days. Only contacts between two {@link EpisimPerson#isTraceable() traceable} persons
+ * that last at least the minimum duration are recorded, so equipment is the one drawn by episim.
+ * Memory does not grow with the number of simulated days.
+ */
+public final class ContactRingBuffer {
+
+	private static final int NONE = -1;
+
+	private final int tracingPeriod;
+	private final int slots;
+	private final int contactsPerDay;
+	private final double minContactDuration;
+
+	/**
+	 * First day slot of each person, {@link #NONE} without recorded contacts.
+	 */
+	private int[] slot = new int[0];
+
+	/**
+	 * Day and number of contacts of each day slot.
+	 */
+	private int[] day = new int[0];
+	private int[] count = new int[0];
+	private int[] contacts = new int[0];
+
+	private int used = 0;
+	private long overflows = 0;
+
+	/**
+	 * @param tracingPeriod  days before the detection that are traced
+	 * @param contactsPerDay contacts kept per person and day, further ones of the same day are dropped
+	 */
+	public ContactRingBuffer(int tracingPeriod, int contactsPerDay, double minContactDuration) {
+		if (tracingPeriod < 0 || contactsPerDay < 1)
+			throw new IllegalArgumentException("Invalid tracing period or number of contacts");
+
+		this.tracingPeriod = tracingPeriod;
+		this.slots = tracingPeriod + 1;
+		this.contactsPerDay = contactsPerDay;
+		this.minContactDuration = minContactDuration;
+	}
+
+	/**
+	 * Creates a buffer with the settings of the tracing config.
+	 */
+	public static ContactRingBuffer create(TracingConfigGroup tracingConfig, int contactsPerDay) {
+		return new ContactRingBuffer(tracingConfig.getTracingPeriod_days(), contactsPerDay, tracingConfig.getMinContactDuration_sec());
+	}
+
+	/**
+	 * Records a contact in both directions, if both persons are traceable and it was long enough.
+	 *
+	 * @return whether the contact was recorded
+	 */
+	public boolean addContact(EpisimPerson person, EpisimPerson contact, int day, double duration) {
+		if (duration < minContactDuration || !person.isTraceable() || !contact.isTraceable())
+			return false;
+
+		int p = person.getPersonId().index();
+		int c = contact.getPersonId().index();
+		add(allocate(p), c, day);
+		add(allocate(c), p, day);
+		return true;
+	}
+
+	/**
+	 * First day slot of a person, allocated on first use.
+	 */
+	private int allocate(int person) {
+		if (person >= slot.length) {
+			int length = slot.length;
+			slot = Arrays.copyOf(slot, Math.max(person + 1, length * 2));
+			Arrays.fill(slot, length, slot.length, NONE);
+		}
+
+		if (slot[person] != NONE)
+			return slot[person];
+
+		if (used + slots > this.day.length) {
+			int length = this.day.length;
+			int n = Math.max(used + slots, length * 2);
+			this.day = Arrays.copyOf(this.day, n);
+			Arrays.fill(this.day, length, n, NONE);
+			count = Arrays.copyOf(count, n);
+			contacts = Arrays.copyOf(contacts, Math.multiplyExact(n, contactsPerDay));
+		}
+
+		slot[person] = used;
+		used += slots;
+		return slot[person];
+	}
+
+	private void add(int first, int contact, int day) {
+		int s = first + Math.floorMod(day, slots);
+
+		if (this.day[s] != day) {
+			this.day[s] = day;
+			count[s] = 0;
+		}
+
+		if (count[s] == contactsPerDay) {
+			overflows++;
+			return;
+		}
+
+		contacts[s * contactsPerDay + count[s]++] = contact;
+	}
+
+	/**
+	 * Passes all contacts of the tracing period up to {@code day} to the consumer.
+	 * Repeated contacts with the same person are passed once per recorded entry.
+	 *
+	 * @return number of contacts
+	 */
+	public int forEachContact(int person, int day, IntConsumer consumer) {
+		if (person >= slot.length || slot[person] == NONE)
+			return 0;
+
+		int n = 0;
+		for (int s = slot[person]; s < slot[person] + slots; s++) {
+			if (this.day[s] < day - tracingPeriod || this.day[s] > day)
+				continue;
+
+			for (int i = s * contactsPerDay; i < s * contactsPerDay + count[s]; i++) {
+				consumer.accept(contacts[i]);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Number of contacts of the tracing period up to {@code day}.
+	 */
+	public int countContacts(int person, int day) {
+		return forEachContact(person, day, c -> {
+		});
+	}
+
+	/**
+	 * Contacts that were dropped because the limit of their day was reached.
+	 */
+	public long getOverflows() {
+		return overflows;
+	}
+
+	public int getContactsPerDay() {
+		return contactsPerDay;
+	}
+
+	/**
+	 * Bytes of the primitive arrays, growing with the number of traceable persons with contacts
+	 * but not with the number of simulated days.
+	 */
+	public long byteSize() {
+		return slot.length * 4L + day.length * 8L + contacts.length * 4L;
+	}
+}
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import java.util.Arrays;
+
+/**
+ * Incrementally tracks the number of contagious persons present in every container.
+ * <p>
+ * Containers are identified by dense indices. Contact evaluation can be skipped for a leaving person
+ * if neither the person nor anyone else in the container is contagious, see {@link #needsEvaluation(int, boolean)}.
+ * Disease status only changes between days, so counts are valid for one day. The first time a container is seen
+ * on a day, its count is {@link #reset(int, int, int) reset} from the persons present, afterwards it is updated
+ * by {@link #enter(int, boolean)} and {@link #leave(int, boolean)}.
+ */
+public final class ContagiousOccupancy {
+
+	private int[] contagiousCount = new int[0];
+	private int[] day = new int[0];
+
+	private long evaluated;
+	private long skipped;
+
+	private void ensure(int container) {
+		if (container >= day.length) {
+			int length = day.length;
+			int n = Math.max(container + 1, length * 2);
+			contagiousCount = Arrays.copyOf(contagiousCount, n);
+			day = Arrays.copyOf(day, n);
+			Arrays.fill(day, length, n, Integer.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Whether the count of a container has already been reset on this day.
+	 */
+	public boolean isCurrent(int container, int day) {
+		ensure(container);
+		return this.day[container] == day;
+	}
+
+	/**
+	 * Sets the count of a container, counted from the persons present.
+	 */
+	public void reset(int container, int day, int contagious) {
+		ensure(container);
+		this.day[container] = day;
+		contagiousCount[container] = contagious;
+	}
+
+	public void enter(int container, boolean contagious) {
+		ensure(container);
+		if (contagious)
+			contagiousCount[container]++;
+	}
+
+	public void leave(int container, boolean contagious) {
+		ensure(container);
+		if (contagious && contagiousCount[container] > 0)
+			contagiousCount[container]--;
+	}
+
+	/**
+	 * Number of contagious persons currently in a container.
+	 */
+	public int getContagiousCount(int container) {
+		ensure(container);
+		return contagiousCount[container];
+	}
+
+	/**
+	 * Whether the contacts of a person about to leave a container need to be evaluated.
+	 *
+	 * @param contagious whether the leaving person is contagious
+	 */
+	public boolean needsEvaluation(int container, boolean contagious) {
+		boolean needed = contagious || getContagiousCount(container) > 0;
+		if (needed)
+			evaluated++;
+		else
+			skipped++;
+
+		return needed;
+	}
+
+	/**
+	 * Number of evaluated and skipped container visits since the last reset.
+	 */
+	public long[] getAndResetCounts() {
+		long[] counts = {evaluated, skipped};
+		evaluated = 0;
+		skipped = 0;
+		return counts;
+	}
+}
@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.Config;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Monte Carlo ensemble of one scenario with different seeds.
+ * <p>
+ * Seeds are run in parallel, the daily values of each finished seed are added to online accumulators.
+ * No new seeds are started once the 95% confidence band of the mean is narrower than the given threshold on every day,
+ * relative to the mean.
+ */
+public final class EnsembleRunner {
+
+	private static final Logger log = LogManager.getLogger(EnsembleRunner.class);
+
+	/**
+	 * Columns of {@code infections.txt} that are aggregated.
+	 */
+	public static final List<String> COLUMNS = List.of("nContagious", "nContagiousCumulative");
+
+	private static final double[] QUANTILES = {0.05, 0.5, 0.95};
+
+	private final Class<? extends AbstractSnzScenario2020_Milan> scenario;
+	private final int iterations;
+	private final int threads;
+
+	private int minSeeds = 5;
+	private int maxSeeds = 100;
+	private double relativeWidth = 0.1;
+	private long seed = 4711;
+	private boolean keepSeedOutputs = true;
+
+	private final SortedMap<Integer, OnlineStats[]> stats = new TreeMap<>();
+
+	public EnsembleRunner(Class<? extends AbstractSnzScenario2020_Milan> scenario, int iterations, int threads) {
+		this.scenario = scenario;
+		this.iterations = iterations;
+		this.threads = threads;
+	}
+
+	/**
+	 * Minimum number of seeds before convergence is checked.
+	 */
+	public void setMinSeeds(int minSeeds) {
+		this.minSeeds = minSeeds;
+	}
+
+	public void setMaxSeeds(int maxSeeds) {
+		this.maxSeeds = maxSeeds;
+	}
+
+	/**
+	 * Width of the confidence band relative to the mean at which the ensemble is considered converged.
+	 */
+	public void setRelativeWidth(double relativeWidth) {
+		this.relativeWidth = relativeWidth;
+	}
+
+	/**
+	 * Master seed, from which the seed of every member is derived.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Whether the output directory of every seed is kept, otherwise it is deleted after it has been aggregated.
+	 */
+	public void setKeepSeedOutputs(boolean keepSeedOutputs) {
+		this.keepSeedOutputs = keepSeedOutputs;
+	}
+
+	/**
+	 * Runs the ensemble and writes {@code ensemble.tsv}.
+	 *
+	 * @return number of seeds that were run
+	 */
+	public int run() throws InterruptedException, IOException {
+
+		SplittableRandom master = new SplittableRandom(seed);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CompletionService<Path> completion = new ExecutorCompletionService<>(executor);
+
+		String base = MultiScenarioRunner.instantiate(scenario).config().controler().getOutputDirectory();
+
+		int started = 0;
+		int finished = 0;
+		boolean converged = false;
+		try {
+			for (; started < Math.min(threads, maxSeeds); started++) {
+				submit(completion, base, started, master.split().nextLong());
+			}
+
+			while (finished < started) {
+				Path output;
+				try {
+					output = completion.take().get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Ensemble member failed", e.getCause());
+				}
+
+				finished++;
+				aggregate(output);
+
+				converged = finished >= minSeeds && isConverged();
+				if (!converged && started < maxSeeds) {
+					submit(completion, base, started++, master.split().nextLong());
+				}
+			}
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+		log.info("Ensemble of {} finished after {} seeds, converged: {}", scenario.getSimpleName(), finished, converged);
+		write(Path.of(base + "-ensemble"));
+		return finished;
+	}
+
+	private void submit(CompletionService<Path> completion, String base, int member, long runSeed) {
+		completion.submit(() -> {
+			AbstractSnzScenario2020_Milan module = MultiScenarioRunner.instantiate(scenario);
+			Config config = module.config();
+			config.global().setRandomSeed(runSeed);
+			config.controler().setOutputDirectory(base + "-seed" + member);
+
+			log.info("Starting ensemble member {} with seed {}", member, runSeed);
+			MultiScenarioRunner.runScenario(module, config, iterations, ScenarioInputCache.get().module(config));
+			return Path.of(config.controler().getOutputDirectory());
+		});
+	}
+
+	private void aggregate(Path output) throws IOException {
+
+		for (Map.Entry<Integer, double[]> e : InfectionsOutput.read(output, COLUMNS).entrySet()) {
+			OnlineStats[] day = stats.computeIfAbsent(e.getKey(), k -> {
+				OnlineStats[] s = new OnlineStats[COLUMNS.size()];
+				for (int i = 0; i < s.length; i++) s[i] = new OnlineStats(QUANTILES);
+				return s;
+			});
+
+			for (int i = 0; i < day.length; i++) {
+				day[i].add(e.getValue()[i]);
+			}
+		}
+
+		if (!keepSeedOutputs)
+			delete(output);
+	}
+
+	/**
+	 * Whether the confidence band of every day and column is narrow enough.
+	 */
+	boolean isConverged() {
+		for (OnlineStats[] day : stats.values()) {
+			for (OnlineStats s : day) {
+				if (s.getConfidenceWidth() > relativeWidth * Math.max(1, Math.abs(s.getMean())))
+					return false;
+			}
+		}
+		return !stats.isEmpty();
+	}
+
+	private void write(Path output) throws IOException {
+
+		Files.createDirectories(output);
+		try (BufferedWriter writer = Files.newBufferedWriter(output.resolve("ensemble.tsv"))) {
+
+			writer.write("day\tcolumn\tn\tmean\tstd\tciLow\tciHigh");
+			for (double q : QUANTILES) {
+				writer.write("\tq" + Math.round(q * 100));
+			}
+			writer.newLine();
+
+			for (Map.Entry<Integer, OnlineStats[]> e : stats.entrySet()) {
+				for (int i = 0; i < COLUMNS.size(); i++) {
+					OnlineStats s = e.getValue()[i];
+					double half = s.getN() > 1 ? s.getConfidenceWidth() / 2 : 0;
+					writer.write(String.format("%d\t%s\t%d\t%f\t%f\t%f\t%f", e.getKey(), COLUMNS.get(i), s.getN(),
+							s.getMean(), s.getStd(), s.getMean() - half, s.getMean() + half));
+					for (int q = 0; q < QUANTILES.length; q++) {
+						writer.write("\t" + s.getQuantile(q));
+					}
+					writer.newLine();
+				}
+			}
+		}
+	}
+
+	static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> {
+				try {
+					Files.delete(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Usage: {@code EnsembleRunner <scenario> <iterations> <threads> [relativeWidth] [maxSeeds]}
+	 */
+	public static void main(String[] args) throws InterruptedException, IOException {
+
+		if (args.length < 3) {
+			System.err.println("Usage: EnsembleRunner <scenario> <iterations> <threads> [relativeWidth] [maxSeeds]");
+			System.exit(1);
+		}
+
+		EnsembleRunner runner = new EnsembleRunner(MultiScenarioRunner.scenarioClass(args[0]),
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+
+		if (args.length > 3)
+			runner.setRelativeWidth(Double.parseDouble(args[3]));
+		if (args.length > 4)
+			runner.setMaxSeeds(Integer.parseInt(args[4]));
+
+		runner.run();
+	}
+}
@@ -0,0 +1,196 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.episim.EpisimPerson.DiseaseStatus;
+
+import java.util.Arrays;
+
+/**
+ * Disease progression that only visits persons with a transition due on the current day.
+ * <p>
+ * When a person enters a status, next status and day are drawn from an {@link AliasProgressionTable},
+ * stored in primitive columns indexed by person and the person is put into a {@link CalendarQueue}.
+ * The columns only hold what the progression needs, i.e. the status as last seen, its day, the drawn transition
+ * and the age, 11 bytes per person. They are kept next to the {@link org.matsim.episim.EpisimPerson}s, not instead of them.
+ * The daily costs are proportional to the transitions of that day instead of the population size,
+ * long stays like 21 days in critical are not touched until they end.
+ * Draws depend on seed, person and day only, not on the order in which persons are processed.
+ */
+public final class EventDrivenProgression {
+
+	/**
+	 * Salt of the progression draws, see {@link Hashing#hash(long, long, int, int)}.
+	 */
+	private static final long SALT = 0x50524f4752455353L; // "PROGRESS"
+
+	private static final DiseaseStatus[] STATUS = DiseaseStatus.values();
+
+	private final byte[] status;
+	private final int[] statusDay;
+	private final byte[] nextStatus;
+	private final int[] nextTransitionDay;
+	private final byte[] age;
+
+	private final AliasProgressionTable table;
+	private final CalendarQueue queue;
+	private final long seed;
+
+	private long transitions = 0;
+
+	/**
+	 * Creates the progression for {@code persons} persons, all susceptible and 0 years old until set otherwise.
+	 */
+	public EventDrivenProgression(int persons, AliasProgressionTable table, long seed) {
+		this.status = new byte[persons];
+		this.statusDay = new int[persons];
+		this.nextStatus = new byte[persons];
+		this.nextTransitionDay = new int[persons];
+		this.age = new byte[persons];
+		Arrays.fill(status, (byte) DiseaseStatus.susceptible.ordinal());
+		Arrays.fill(nextTransitionDay, -1);
+
+		this.table = table;
+		this.queue = new CalendarQueue(table.getMaxDays() + 1);
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the status of a person, e.g. when infected, and schedules the next transition.
+	 */
+	public void setStatus(int person, DiseaseStatus status, int day) {
+		this.status[person] = (byte) status.ordinal();
+		this.statusDay[person] = day;
+
+		if (!table.hasTransition(status)) {
+			nextTransitionDay[person] = -1;
+			return;
+		}
+
+		long random = Hashing.hash(seed, SALT, person, day);
+		int sample = table.sample(status, age[person], random);
+
+		// as with the daily update, a transition happens on the next day at the earliest
+		int due = day + Math.max(1, AliasProgressionTable.days(sample));
+		nextStatus[person] = (byte) AliasProgressionTable.status(sample).ordinal();
+		nextTransitionDay[person] = due;
+		queue.schedule(person, day, due);
+	}
+
+	/**
+	 * Executes all transitions due on this day.
+	 *
+	 * @return number of transitions
+	 */
+	public int advance(int day, Listener listener) {
+		int before = (int) transitions;
+		queue.drain(day, person -> {
+			// skip entries whose transition has been changed in the meantime
+			if (nextTransitionDay[person] != day)
+				return;
+
+			DiseaseStatus from = getStatus(person);
+			DiseaseStatus to = getNextStatus(person);
+			setStatus(person, to, day);
+			transitions++;
+			listener.transition(person, from, to, day);
+		});
+		return (int) transitions - before;
+	}
+
+	/**
+	 * Executes the transitions of one person due on or before this day, needed if a status has been set for an
+	 * earlier day and its next transition was already due when the day was advanced.
+	 *
+	 * @return number of transitions
+	 */
+	public int catchUp(int person, int day, Listener listener) {
+		int n = 0;
+		int due;
+		while ((due = nextTransitionDay[person]) >= 0 && due <= day) {
+			DiseaseStatus from = getStatus(person);
+			DiseaseStatus to = getNextStatus(person);
+			setStatus(person, to, due);
+			transitions++;
+			n++;
+			listener.transition(person, from, to, due);
+		}
+		return n;
+	}
+
+	/**
+	 * Status of a person as last set or executed.
+	 */
+	public DiseaseStatus getStatus(int person) {
+		return STATUS[status[person]];
+	}
+
+	/**
+	 * Day the current status was entered.
+	 */
+	public int getStatusDay(int person) {
+		return statusDay[person];
+	}
+
+	public DiseaseStatus getNextStatus(int person) {
+		return STATUS[nextStatus[person]];
+	}
+
+	/**
+	 * Day of the next scheduled transition, or -1 if none is scheduled.
+	 */
+	public int getNextTransitionDay(int person) {
+		return nextTransitionDay[person];
+	}
+
+	/**
+	 * Sets the age used for the draws, capped at 127 years. Needs to be set before the first status.
+	 */
+	public void setAge(int person, int years) {
+		age[person] = (byte) Math.min(years, Byte.MAX_VALUE);
+	}
+
+	/**
+	 * Bytes of the person columns.
+	 */
+	public static long footprint(long persons) {
+		return persons * (1 + 4 + 1 + 4 + 1);
+	}
+
+	/**
+	 * Number of scheduled transitions.
+	 */
+	public long getPending() {
+		return queue.size();
+	}
+
+	public long getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * Notified about each executed transition.
+	 */
+	@FunctionalInterface
+	public interface Listener {
+		void transition(int person, DiseaseStatus from, DiseaseStatus to, int day);
+	}
+}
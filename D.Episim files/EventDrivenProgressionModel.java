@@ -0,0 +1,350 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.episim.EpisimConfigGroup;
+import org.matsim.episim.EpisimPerson;
+import org.matsim.episim.EpisimPerson.DiseaseStatus;
+import org.matsim.episim.EpisimPerson.QuarantineStatus;
+import org.matsim.episim.EpisimReporting;
+import org.matsim.episim.TracingConfigGroup;
+import org.matsim.episim.model.ProgressionModel;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Progression model of the Milan scenarios that only visits persons with a transition due, see {@link EventDrivenProgression}.
+ * <p>
+ * Transitions are drawn from the {@link AliasProgressionTable#fromConfig(com.typesafe.config.Config) table} of the
+ * episim progression config when a status is entered and executed from the calendar queue at the start of the day. {@link #updateState(EpisimPerson, int)} only picks up statuses set by episim,
+ * i.e. new infections, and releases quarantined persons, both constant time per person.
+ * <p>
+ * Symptomatic persons go into home quarantine. With tracing enabled, their household members and traceable contacts
+ * of the tracing period are put into quarantine after the tracing delay, as long as the daily tracing capacity lasts.
+ * With {@link MilanEngineConfigGroup#getTracingQueueSize()} set, cases exceeding the capacity are carried over by the
+ * {@link TracingScheduler} instead of being dropped, its daily metrics are written to {@code tracingScheduler.tsv}.
+ * With {@link MilanEngineConfigGroup#getTracingContactsPerDay()} set, contacts are read from the {@link ContactRingBuffer}
+ * filled by the {@link TracingContactModel} instead of the unbounded episim history.
+ * Households come from the {@link HouseholdIndex} of the scenario instead of the contacts at home.
+ * <p>
+ * episim still calls {@link #updateState(EpisimPerson, int)} for every person, which returns right away for persons
+ * whose status has not been changed by episim and who are not in quarantine.
+ * <p>
+ * The progression state is not written to episim snapshots, it is rebuilt from the persons instead: draws only depend on
+ * seed, person, status, day of the status and age, so the first update of a restored person draws the same transition
+ * again, and pending detections are scheduled again from the day symptoms started. The queue of the
+ * {@link TracingScheduler} and the {@link ContactRingBuffer} can not be rebuilt, snapshots are not supported with them.
+ */
+public final class EventDrivenProgressionModel implements ProgressionModel {
+
+	private static final Logger log = LogManager.getLogger(EventDrivenProgressionModel.class);
+
+	private static final double DAY = 24 * 3600.;
+
+	/**
+	 * Days after which healthy persons are released from quarantine, as in episim.
+	 */
+	private static final int QUARANTINE_DAYS = 14;
+
+	/**
+	 * Salt of the tracing draws, see {@link Hashing#hash(long, long, int, int)}.
+	 */
+	private static final long SALT = 0x54524143494e4700L; // "TRACING"
+
+	private final EpisimConfigGroup episimConfig;
+	private final TracingConfigGroup tracingConfig;
+	private final Scenario scenario;
+	private final long seed;
+
+	private EpisimPerson[] persons;
+	private EventDrivenProgression progression;
+	private HouseholdIndex households;
+
+	/**
+	 * Persons to trace, by the day their tracing is due.
+	 */
+	private CalendarQueue detections;
+
+	/**
+	 * Queue of detected cases, null if every case is traced on detection within the capacity.
+	 */
+	private final TracingScheduler scheduler;
+	private final Path metrics;
+
+	/**
+	 * Recorded contacts, null if the episim contact history is used.
+	 */
+	private final ContactRingBuffer contacts;
+
+	private int day;
+	private int capacity;
+
+	@Inject
+	public EventDrivenProgressionModel(Config config, EpisimConfigGroup episimConfig, TracingConfigGroup tracingConfig, Scenario scenario,
+			Provider<ContactRingBuffer> contacts) {
+		this.episimConfig = episimConfig;
+		this.tracingConfig = tracingConfig;
+		this.scenario = scenario;
+		this.seed = config.global().getRandomSeed();
+
+		MilanEngineConfigGroup engineConfig = ConfigUtils.addOrGetModule(config, MilanEngineConfigGroup.class);
+		if ((engineConfig.getTracingQueueSize() > 0 || engineConfig.getTracingContactsPerDay() > 0)
+				&& (episimConfig.getSnapshotInterval() > 0 || episimConfig.getStartFromSnapshot() != null))
+			throw new IllegalArgumentException("Snapshots are not supported with milanEngine.tracingQueueSize or milanEngine.tracingContactsPerDay");
+
+		if (engineConfig.getTracingQueueSize() > 0) {
+			// day 0 of the scheduler is the day before the start, so that its days are the iterations
+			this.scheduler = TracingScheduler.create(tracingConfig, episimConfig.getStartDate().minusDays(1),
+					engineConfig.getTracingQueueSize(), engineConfig.getTracingPriority());
+			this.metrics = Path.of(config.controler().getOutputDirectory(), "tracingScheduler.tsv");
+		} else {
+			this.scheduler = null;
+			this.metrics = null;
+		}
+
+		this.contacts = engineConfig.getTracingContactsPerDay() > 0 ? contacts.get() : null;
+	}
+
+	/**
+	 * Allocates the state once all persons are known, i.e. when the first day starts.
+	 */
+	private void init() {
+		int n = Id.getNumberOfIds(Person.class);
+
+		// registry indices are the same as the person id indices
+		IdRegistry ids = new IdRegistry();
+		for (int i = 0; i < n; i++) {
+			ids.register(IdRegistry.Kind.person, Id.get(i, Person.class));
+		}
+
+		persons = new EpisimPerson[n];
+		progression = new EventDrivenProgression(n, AliasProgressionTable.fromConfig(episimConfig.getProgressionConfig()), seed);
+		households = HouseholdIndex.build(scenario.getHouseholds(), ids);
+		detections = new CalendarQueue(tracingConfig.getTracingDelay_days() + 1);
+
+		log.info("Event driven progression for {} persons ({} bytes)", n, EventDrivenProgression.footprint(n));
+	}
+
+	@Override
+	public void setIteration(int day) {
+		if (progression == null)
+			init();
+
+		this.day = day;
+		this.capacity = capacity(episimConfig.getStartDate().plusDays(day - 1));
+
+		progression.advance(day, this::onTransition);
+		detections.drain(day, this::detect);
+
+		if (scheduler != null) {
+			scheduler.process(day, this::trace);
+			try {
+				scheduler.write(metrics);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	@Override
+	public void updateState(EpisimPerson person, int day) {
+		int index = person.getPersonId().index();
+		if (index >= persons.length)
+			throw new IllegalStateException("Person " + person.getPersonId() + " has been created after the progression model");
+
+		DiseaseStatus status = person.getDiseaseStatus();
+		if (persons[index] != null && status == progression.getStatus(index) && person.getQuarantineStatus() == QuarantineStatus.no)
+			return;
+
+		boolean first = persons[index] == null;
+		if (first) {
+			persons[index] = person;
+			progression.setAge(index, age(person));
+		}
+
+		// status set by episim, e.g. a new infection, or restored from a snapshot
+		if (status != progression.getStatus(index)) {
+			progression.setStatus(index, status, day - person.daysSince(status, day));
+			progression.catchUp(index, day, this::onTransition);
+		}
+
+		if (first)
+			restoreDetection(index, person);
+
+		if (person.getQuarantineStatus() != QuarantineStatus.no && isHealthy(person.getDiseaseStatus())
+				&& person.daysSinceQuarantine(day) > QUARANTINE_DAYS)
+			person.setQuarantineStatus(QuarantineStatus.no, day);
+	}
+
+	/**
+	 * Schedules the detection again of a person whose symptoms started before the model has seen the person,
+	 * i.e. when restored from a snapshot.
+	 */
+	private void restoreDetection(int index, EpisimPerson person) {
+		int since = person.daysSince(DiseaseStatus.showingSymptoms, day);
+		if (since <= 0)
+			return;
+
+		int due = day - since + tracingConfig.getTracingDelay_days();
+		if (due > day)
+			detections.schedule(index, day, due);
+		else if (due == day)
+			detect(index);
+	}
+
+	private static int age(EpisimPerson person) {
+		Object age = person.getAttributes().getAttribute("age");
+		if (age == null)
+			throw new IllegalStateException("Person " + person.getPersonId() + " has no age, age dependent progression is not possible");
+
+		return ((Number) age).intValue();
+	}
+
+	private static boolean isHealthy(DiseaseStatus status) {
+		return status == DiseaseStatus.susceptible || status == DiseaseStatus.infectedButNotContagious
+				|| status == DiseaseStatus.contagious || status == DiseaseStatus.recovered;
+	}
+
+	private void onTransition(int index, DiseaseStatus from, DiseaseStatus to, int transitionDay) {
+		EpisimPerson person = persons[index];
+		person.setDiseaseStatus(transitionDay * DAY, to);
+
+		if (to != DiseaseStatus.showingSymptoms)
+			return;
+
+		person.setQuarantineStatus(QuarantineStatus.atHome, transitionDay);
+
+		int delay = tracingConfig.getTracingDelay_days();
+		if (transitionDay + delay > day)
+			detections.schedule(index, day, transitionDay + delay);
+		else
+			detect(index);
+	}
+
+	/**
+	 * Persons traced per day, from the latest capacity entry at or before the date.
+	 */
+	private int capacity(LocalDate date) {
+		LocalDate valid = null;
+		int result = 0;
+		for (Map.Entry<LocalDate, Integer> e : tracingConfig.getTracingCapacity().entrySet()) {
+			if (!e.getKey().isAfter(date) && (valid == null || e.getKey().isAfter(valid))) {
+				valid = e.getKey();
+				result = e.getValue();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Traces a detected case within the capacity of the day, or queues it at the scheduler.
+	 */
+	private void detect(int index) {
+		if (day < tracingConfig.getPutTraceablePersonsInQuarantineAfterDay())
+			return;
+
+		if (scheduler != null) {
+			EpisimPerson person = persons[index];
+			int n = 0;
+			if (scheduler.getPriority() == TracingScheduler.Priority.mostContacts && person.isTraceable())
+				n = contacts != null ? contacts.countContacts(index, day) : person.getTraceableContactPersons(tracingStart()).size();
+
+			scheduler.add(index, day, n);
+		} else if (capacity > 0) {
+			capacity--;
+			trace(index);
+		}
+	}
+
+	/**
+	 * Begin of the tracing period of today.
+	 */
+	private double tracingStart() {
+		return day * DAY - tracingConfig.getTracingPeriod_days() * DAY;
+	}
+
+	/**
+	 * Quarantines household and traceable contacts of a detected case.
+	 */
+	private void trace(int index) {
+		EpisimPerson person = persons[index];
+
+		if (tracingConfig.getQuarantineHouseholdMembers()) {
+			int h = households.household(index);
+			if (h != HouseholdIndex.NO_HOUSEHOLD)
+				households.forEachMember(h, m -> quarantine(persons[m]));
+		}
+
+		if (!person.isTraceable())
+			return;
+
+		if (contacts != null) {
+			contacts.forEachContact(index, day, this::traceContact);
+			return;
+		}
+
+		for (EpisimPerson contact : person.getTraceableContactPersons(tracingStart())) {
+			traceContact(contact.getPersonId().index());
+		}
+	}
+
+	private void traceContact(int contact) {
+		long r = Hashing.hash(seed, SALT, contact, day);
+		if (Hashing.uniform(r) < tracingConfig.getTracingProbability())
+			quarantine(persons[contact]);
+	}
+
+	private void quarantine(EpisimPerson person) {
+		if (person != null && person.getQuarantineStatus() == QuarantineStatus.no && person.getDiseaseStatus() != DiseaseStatus.recovered)
+			person.setQuarantineStatus(QuarantineStatus.full, day);
+	}
+
+	@Override
+	public boolean canProgress(EpisimReporting.InfectionReport report) {
+		return progression.getPending() > 0 || detections.size() > 0 || (scheduler != null && scheduler.getPending() > 0);
+	}
+
+	@Override
+	public int getNextTransitionDays(Id<Person> personId) {
+		int index = personId.index();
+		int due = progression.getNextTransitionDay(index);
+		return due < 0 ? -1 : due - progression.getStatusDay(index);
+	}
+
+	@Override
+	public DiseaseStatus getNextDiseaseStatus(Id<Person> personId) {
+		int index = personId.index();
+		return progression.getNextTransitionDay(index) < 0 ? DiseaseStatus.susceptible : progression.getNextStatus(index);
+	}
+}
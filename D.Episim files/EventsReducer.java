@@ -0,0 +1,396 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming reducer for MATSim events files. Keeps only the events needed by the episim contact model
+ * (activity start/end and vehicle enter/leave) and writes them to a compact events file.
+ * The input is read with StAX, so the whole file is never held in memory.
+ * <p>
+ * Vehicles that never carry more than one person at a time, e.g. private cars, can not produce any contact.
+ * Their enter and leave events are removed as well, so only shared vehicles become containers.
+ * Optionally, large facilities are split into sub-containers by a {@link FacilitySplitter}.
+ */
+public final class EventsReducer {
+
+	private static final Logger log = LogManager.getLogger(EventsReducer.class);
+
+	/**
+	 * Event types that are read by episim, everything else is dropped.
+	 */
+	public static final Set<String> RETAINED_TYPES = Set.of(
+			"actstart", "actend", "PersonEntersVehicle", "PersonLeavesVehicle"
+	);
+
+	private EventsReducer() {
+	}
+
+	/**
+	 * Returns the path of the default reduced file belonging to {@code events}, with single occupancy vehicles elided,
+	 * e.g. {@code output_events-0.25-reduced-elided.xml.gz}.
+	 */
+	public static Path reducedFileFor(Path events) {
+		return reducedFileFor(events, true, null);
+	}
+
+	/**
+	 * Returns the path of the reduced file. The name contains every option that changes the content,
+	 * {@code -elided} if single occupancy vehicles are removed and {@code -split-<key>} if facilities are split,
+	 * with the {@link FacilitySplitter#key() key} of the maximum sizes, so a file reduced with other options is never reused.
+	 */
+	public static Path reducedFileFor(Path events, boolean elideSingleOccupancy, FacilitySplitter splitter) {
+		String name = events.getFileName().toString();
+		String base = name.endsWith(".xml.gz") ? name.substring(0, name.length() - ".xml.gz".length()) : name;
+		return events.resolveSibling(base + "-reduced" + (elideSingleOccupancy ? "-elided" : "")
+				+ (splitter != null ? "-split-" + splitter.key() : "") + ".xml.gz");
+	}
+
+	/**
+	 * Reduces {@code events} once, with single occupancy vehicles elided, and returns the reduced file.
+	 * An existing reduced file is reused as long as it is not older than its source.
+	 */
+	public static Path reduceCached(Path events) {
+		return reduceCached(events, true, null);
+	}
+
+	/**
+	 * Same as {@link #reduceCached(Path)}, splitting facilities with the given splitter if not null.
+	 */
+	public static Path reduceCached(Path events, FacilitySplitter splitter) {
+		return reduceCached(events, true, splitter);
+	}
+
+	/**
+	 * Reduces {@code events} once with the given options and returns the reduced file, see {@link #reducedFileFor(Path, boolean, FacilitySplitter)}.
+	 */
+	public static synchronized Path reduceCached(Path events, boolean elideSingleOccupancy, FacilitySplitter splitter) {
+		Path reduced = reducedFileFor(events, elideSingleOccupancy, splitter);
+		try {
+			if (Files.exists(reduced) && Files.getLastModifiedTime(reduced).compareTo(Files.getLastModifiedTime(events)) >= 0) {
+				log.info("Using reduced events file {}", reduced);
+				return reduced;
+			}
+
+			Stats stats = reduce(events, reduced, elideSingleOccupancy, splitter);
+			log.info("Reduced events {} -> {}: {}", events, reduced, stats);
+			if (splitter != null)
+				log.info("Facility splitter: {}", splitter);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return reduced;
+	}
+
+	/**
+	 * Reads {@code in} and writes all retained events to {@code out}, without events of single occupancy vehicles.
+	 */
+	public static Stats reduce(Path in, Path out) throws IOException {
+		return reduce(in, out, true);
+	}
+
+	/**
+	 * Reads {@code in} and writes all retained events to {@code out}.
+	 *
+	 * @param elideSingleOccupancy remove enter and leave events of vehicles that never carry more than one person
+	 */
+	public static Stats reduce(Path in, Path out, boolean elideSingleOccupancy) throws IOException {
+		return reduce(in, out, elideSingleOccupancy, null);
+	}
+
+	/**
+	 * Reads {@code in} and writes all retained events to {@code out}.
+	 *
+	 * @param elideSingleOccupancy remove enter and leave events of vehicles that never carry more than one person
+	 * @param splitter             splits large facilities into sub-containers, may be null
+	 */
+	public static Stats reduce(Path in, Path out, boolean elideSingleOccupancy, FacilitySplitter splitter) throws IOException {
+
+		Stats stats = new Stats();
+
+		// first pass: vehicles that never carry two persons at the same time and persons per facility
+		VehicleOccupancy occupancy = new VehicleOccupancy();
+		if (elideSingleOccupancy || splitter != null) {
+			forEachEvent(in, attributes -> {
+				if (elideSingleOccupancy)
+					occupancy.accept(attributes);
+				if (splitter != null)
+					splitter.observe(attributes);
+			});
+		}
+
+		Set<String> elided = elideSingleOccupancy ? occupancy.singleOccupancy() : Set.of();
+		stats.elidedVehicles = elided.size();
+
+		if (splitter != null)
+			splitter.finish();
+
+		Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+		try {
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmp), 1 << 16), StandardCharsets.UTF_8))) {
+
+				writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n");
+
+				forEachEvent(in, attributes -> {
+					String type = attributes.get("type");
+					stats.read++;
+					if (!RETAINED_TYPES.contains(type)) {
+						stats.dropped.merge(type, 1L, Long::sum);
+						return;
+					}
+
+					if (!elided.isEmpty() && type.endsWith("Vehicle") && elided.contains(attributes.get("vehicle"))) {
+						stats.elidedEvents++;
+						return;
+					}
+
+					if (splitter != null)
+						splitter.rewrite(attributes);
+
+					try {
+						writeEvent(writer, attributes);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					stats.written++;
+				});
+
+				writer.write("</events>\n");
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			// no-op after the move, removes the partial output if reduction failed
+			Files.deleteIfExists(tmp);
+		}
+
+		stats.bytesIn = Files.size(in);
+		stats.bytesOut = Files.size(out);
+		return stats;
+	}
+
+	/**
+	 * Vehicles that never carry more than one person at the same time.
+	 */
+	public static Set<String> singleOccupancyVehicles(Path events) throws IOException {
+		VehicleOccupancy occupancy = new VehicleOccupancy();
+		forEachEvent(events, occupancy);
+		return occupancy.singleOccupancy();
+	}
+
+	/**
+	 * Tracks current and maximum occupancy of each vehicle.
+	 */
+	private static final class VehicleOccupancy implements Consumer<Map<String, String>> {
+
+		private final Map<String, int[]> occupancy = new HashMap<>();
+
+		@Override
+		public void accept(Map<String, String> attributes) {
+			String type = attributes.get("type");
+			boolean enters = "PersonEntersVehicle".equals(type);
+			if (!enters && !"PersonLeavesVehicle".equals(type))
+				return;
+
+			int[] o = occupancy.computeIfAbsent(attributes.get("vehicle"), k -> new int[2]);
+			o[0] += enters ? 1 : -1;
+			o[1] = Math.max(o[1], o[0]);
+		}
+
+		private Set<String> singleOccupancy() {
+			Set<String> vehicles = new HashSet<>();
+			occupancy.forEach((vehicle, o) -> {
+				if (o[1] <= 1)
+					vehicles.add(vehicle);
+			});
+
+			log.info("{} of {} vehicles never carry more than one person", vehicles.size(), occupancy.size());
+			return vehicles;
+		}
+	}
+
+	/**
+	 * Streams all events of a (possibly gzipped) events file. The attribute map is reused between calls
+	 * and must not be kept by the consumer.
+	 */
+	public static void forEachEvent(Path events, Consumer<Map<String, String>> consumer) throws IOException {
+
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+
+		Map<String, String> attributes = new LinkedHashMap<>();
+
+		try (InputStream is = open(events)) {
+			XMLStreamReader reader = factory.createXMLStreamReader(is);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() != XMLStreamConstants.START_ELEMENT || !"event".equals(reader.getLocalName()))
+						continue;
+
+					attributes.clear();
+					for (int i = 0; i < reader.getAttributeCount(); i++) {
+						attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+					}
+
+					consumer.accept(attributes);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not parse events file " + events, e);
+		}
+	}
+
+	private static InputStream open(Path path) throws IOException {
+		InputStream is = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+		return path.toString().endsWith(".gz") ? new GZIPInputStream(is, 1 << 16) : is;
+	}
+
+	/**
+	 * Writes one event in the same layout as the MATSim events writer.
+	 */
+	static void writeEvent(Writer writer, Map<String, String> attributes) throws IOException {
+		writer.write("\t<event");
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			writer.write(' ');
+			writer.write(e.getKey());
+			writer.write("=\"");
+			writer.write(escape(e.getValue()));
+			writer.write('"');
+		}
+		writer.write("  />\n");
+	}
+
+	private static String escape(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '&' || c == '<' || c == '>' || c == '"') {
+				return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+			}
+		}
+		return value;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			System.err.println("Usage: EventsReducer <events.xml.gz> [output.xml.gz] [--keep-vehicles]");
+			System.exit(1);
+		}
+
+		boolean keepVehicles = args[args.length - 1].equals("--keep-vehicles");
+		int n = keepVehicles ? args.length - 1 : args.length;
+
+		Path in = Path.of(args[0]);
+		Path out = n > 1 ? Path.of(args[1]) : reducedFileFor(in, !keepVehicles, null);
+
+		Stats stats = reduce(in, out, !keepVehicles);
+		System.out.println(stats);
+	}
+
+	/**
+	 * Reduction statistics of one run.
+	 */
+	public static final class Stats {
+
+		private long read;
+		private long written;
+		private long bytesIn;
+		private long bytesOut;
+		private long elidedVehicles;
+		private long elidedEvents;
+		private final Map<String, Long> dropped = new TreeMap<>();
+
+		public long getRead() {
+			return read;
+		}
+
+		public long getWritten() {
+			return written;
+		}
+
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		public Map<String, Long> getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * Vehicles that are not containers anymore, because they never carry more than one person.
+		 */
+		public long getElidedVehicles() {
+			return elidedVehicles;
+		}
+
+		/**
+		 * Enter and leave events removed together with these vehicles.
+		 */
+		public long getElidedEvents() {
+			return elidedEvents;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("events %d -> %d (%.1f%% kept), bytes %d -> %d (%.1f%%), dropped %s, " +
+							"elided %d single occupancy vehicles with %d events",
+					read, written, read == 0 ? 0 : 100. * written / read,
+					bytesIn, bytesOut, bytesIn == 0 ? 0 : 100. * bytesOut / bytesIn, dropped, elidedVehicles, elidedEvents);
+		}
+	}
+}
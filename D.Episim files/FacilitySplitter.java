@@ -0,0 +1,255 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Splits large facilities into sub-containers of bounded size while the events are reduced, see {@link EventsReducer}.
+ * <p>
+ * For each activity type prefix with a maximum size, the persons of a facility are counted in a first pass.
+ * Facilities with more persons are split into the least number of chunks of at most this size, e.g. offices or classrooms.
+ * Persons are ordered by a hash of person and facility and cut into balanced chunks, so each person always
+ * ends up in the same sub-container. Activity events of split facilities get the id {@code <id>_split<k>},
+ * as facility or, if the events have none, as link. Activity types without a maximum, like home, are never split.
+ */
+public final class FacilitySplitter {
+
+	private static final Logger log = LogManager.getLogger(FacilitySplitter.class);
+
+	private final Map<String, Integer> maxSizes = new LinkedHashMap<>();
+
+	/**
+	 * Persons per facility and activity prefix, collected in the first pass.
+	 */
+	private final Map<String, Set<String>> members = new HashMap<>();
+
+	/**
+	 * Sub-container of each person per facility and activity prefix, null before {@link #finish()}.
+	 */
+	private Map<String, Map<String, Integer>> chunks;
+
+	private int split = 0;
+	private int subContainers = 0;
+	private long rewritten = 0;
+
+	/**
+	 * Splitter for the activity types of the Milan scenarios, see {@link AbstractSnzScenario2020_Milan#DEFAULT_ACTIVITIES}.
+	 * <p>
+	 * Workplaces are split into floors of 15 persons: in {@code json/json_posti_lavoro.json} the {@code dipendenti}
+	 * of every building with levels is {@code lvl_edificio} times 10 or 15, so 15 is the largest occupancy of one floor.
+	 * Schools and universities are split into classes of 25: {@code json/json_scuola.json} only gives the
+	 * {@code capienza} of the whole building (200 for schools, 350 for universities), 25 divides it into 8 and 14 classes
+	 * and stays below the maximum class size of 26 to 27 pupils of Italian schools.
+	 */
+	public static FacilitySplitter milan() {
+		return new FacilitySplitter()
+				.setMaxSize("work_ess", 15)
+				.setMaxSize("work_noEss", 15)
+				.setMaxSize("school", 25)
+				.setMaxSize("university", 25);
+	}
+
+	/**
+	 * Sets the maximum number of persons of a sub-container for all activity types starting with {@code prefix}.
+	 */
+	public FacilitySplitter setMaxSize(String prefix, int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("Maximum size must be at least 1");
+		if (chunks != null)
+			throw new IllegalStateException("Splitter has already been used");
+
+		maxSizes.put(prefix, max);
+		return this;
+	}
+
+	private String prefix(String actType) {
+		if (actType == null)
+			return null;
+
+		for (String prefix : maxSizes.keySet()) {
+			if (actType.startsWith(prefix))
+				return prefix;
+		}
+		return null;
+	}
+
+	private static String containerAttribute(Map<String, String> attributes) {
+		return attributes.containsKey("facility") ? "facility" : "link";
+	}
+
+	private static boolean isActivity(Map<String, String> attributes) {
+		String type = attributes.get("type");
+		return "actstart".equals(type) || "actend".equals(type);
+	}
+
+	/**
+	 * First pass, collects the persons of each facility.
+	 */
+	public void observe(Map<String, String> attributes) {
+		if (!isActivity(attributes))
+			return;
+
+		String prefix = prefix(attributes.get("actType"));
+		if (prefix == null)
+			return;
+
+		String facility = attributes.get(containerAttribute(attributes));
+		members.computeIfAbsent(facility + '\t' + prefix, k -> new LinkedHashSet<>()).add(attributes.get("person"));
+	}
+
+	/**
+	 * Assigns the persons to sub-containers, needs to be called between both passes.
+	 */
+	public void finish() {
+		chunks = new HashMap<>();
+
+		// sub-containers are numbered per facility, in case several activity types share it
+		Map<String, Integer> offsets = new HashMap<>();
+
+		members.keySet().stream().sorted().forEach(key -> {
+			Set<String> persons = members.get(key);
+			String facility = key.substring(0, key.indexOf('\t'));
+			int max = maxSizes.get(key.substring(key.indexOf('\t') + 1));
+
+			if (persons.size() <= max)
+				return;
+
+			int n = (persons.size() + max - 1) / max;
+			int offset = offsets.getOrDefault(facility, 0);
+			offsets.put(facility, offset + n);
+
+			List<String> ordered = new ArrayList<>(persons);
+			ordered.sort((a, b) -> {
+				int c = Long.compare(hash(a, facility), hash(b, facility));
+				return c != 0 ? c : a.compareTo(b);
+			});
+
+			Map<String, Integer> assignment = new HashMap<>();
+			for (int i = 0; i < ordered.size(); i++) {
+				assignment.put(ordered.get(i), offset + (int) ((long) i * n / ordered.size()));
+			}
+
+			chunks.put(key, assignment);
+			split++;
+			subContainers += n;
+		});
+
+		members.clear();
+		log.info("Splitting {} facilities into {} sub-containers with maximum sizes {}", split, subContainers, maxSizes);
+	}
+
+	private static long hash(String person, String facility) {
+		return Hashing.mix(((long) person.hashCode() << 32) ^ (facility.hashCode() & 0xffffffffL));
+	}
+
+	/**
+	 * Second pass, replaces the facility of an activity event by its sub-container.
+	 *
+	 * @return whether the event has been changed
+	 */
+	public boolean rewrite(Map<String, String> attributes) {
+		if (chunks == null)
+			throw new IllegalStateException("finish() has not been called");
+
+		if (chunks.isEmpty() || !isActivity(attributes))
+			return false;
+
+		String prefix = prefix(attributes.get("actType"));
+		if (prefix == null)
+			return false;
+
+		String attribute = containerAttribute(attributes);
+		String facility = attributes.get(attribute);
+		Map<String, Integer> assignment = chunks.get(facility + '\t' + prefix);
+		if (assignment == null)
+			return false;
+
+		attributes.put(attribute, facility + "_split" + assignment.get(attributes.get("person")));
+		rewritten++;
+		return true;
+	}
+
+	public Map<String, Integer> getMaxSizes() {
+		return maxSizes;
+	}
+
+	/**
+	 * Short key of the maximum sizes, identifying files written with this splitter.
+	 */
+	public String key() {
+		CRC32 crc = new CRC32();
+		crc.update(new TreeMap<>(maxSizes).toString().getBytes(StandardCharsets.UTF_8));
+		return String.format("%08x", crc.getValue());
+	}
+
+	/**
+	 * Number of facilities that have been split.
+	 */
+	public int getSplit() {
+		return split;
+	}
+
+	public int getSubContainers() {
+		return subContainers;
+	}
+
+	public long getRewritten() {
+		return rewritten;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("split %d facilities into %d sub-containers, rewrote %d events", split, subContainers, rewritten);
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: FacilitySplitter <events.xml.gz> <output.xml.gz> [prefix=maxSize ...]");
+			System.exit(1);
+		}
+
+		FacilitySplitter splitter = args.length > 2 ? new FacilitySplitter() : milan();
+		for (int i = 2; i < args.length; i++) {
+			String[] kv = args[i].split("=");
+			splitter.setMaxSize(kv[0], Integer.parseInt(kv[1]));
+		}
+
+		EventsReducer.Stats stats = EventsReducer.reduce(Path.of(args[0]), Path.of(args[1]), true, splitter);
+		System.out.println(stats);
+		System.out.println(splitter);
+	}
+}
@@ -0,0 +1,366 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.episim.EpisimConfigGroup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Runs scenario variants that only differ in their policy by simulating the common prefix once.
+ * <p>
+ * Variants are grouped into families with identical configs apart from the policy. For every family the days before the
+ * first diverging policy date are simulated once and written as episim snapshot, all variants then continue from it.
+ * The same snapshots are used to resume crashed runs, see {@link #resume(Class, int, int)}.
+ */
+public final class ForkRunner {
+
+	private static final Logger log = LogManager.getLogger(ForkRunner.class);
+
+	private static final String SNAPSHOT_GLOB = "episim-snapshot-*.zip";
+
+	private final int threads;
+	private final int iterations;
+
+	/**
+	 * @param threads    maximum number of variants running at the same time
+	 * @param iterations number of simulated days per variant
+	 */
+	public ForkRunner(int threads, int iterations) {
+		this.threads = threads;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Runs all variants, forking each family at its divergence date.
+	 */
+	public void run(List<Class<? extends AbstractSnzScenario2020_Milan>> scenarios) throws InterruptedException, ExecutionException {
+
+		Map<String, List<Variant>> families = new LinkedHashMap<>();
+		for (Class<? extends AbstractSnzScenario2020_Milan> scenario : scenarios) {
+			Variant v = new Variant(scenario);
+			checkSnapshots(v);
+			families.computeIfAbsent(familyKey(v.config), k -> new ArrayList<>()).add(v);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			// prefixes of all families are run first, in parallel
+			List<Future<Optional<Path>>> prefixes = new ArrayList<>();
+			for (List<Variant> family : families.values()) {
+				prefixes.add(executor.submit(() -> runPrefix(family)));
+			}
+
+			List<Future<?>> branches = new ArrayList<>();
+			int i = 0;
+			for (List<Variant> family : families.values()) {
+				Optional<Path> snapshot = prefixes.get(i++).get();
+				for (Variant v : family) {
+					branches.add(executor.submit(() -> {
+						snapshot.ifPresent(s -> ConfigUtils.addOrGetModule(v.config, EpisimConfigGroup.class).setStartFromSnapshot(s.toString()));
+						MultiScenarioRunner.runScenario(v.module, v.config, iterations);
+						return null;
+					}));
+				}
+			}
+
+			for (Future<?> f : branches) {
+				f.get();
+			}
+
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Simulates the common days of a family and returns the snapshot to continue from, if there is a common prefix.
+	 */
+	private Optional<Path> runPrefix(List<Variant> family) throws IOException {
+
+		Variant first = family.get(0);
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(first.config, EpisimConfigGroup.class);
+		LocalDate start = episimConfig.getStartDate();
+
+		List<Config> configs = new ArrayList<>();
+		family.forEach(v -> configs.add(v.config));
+
+		LocalDate divergence = divergenceDate(start, configs);
+
+		// day 1 is the start date, the snapshot must contain the state at the end of the day before divergence
+		int days = (int) Math.min(ChronoUnit.DAYS.between(start, divergence), iterations);
+		if (days < 1 || family.size() == 1) {
+			log.info("No common prefix for {}", first.name);
+			return Optional.empty();
+		}
+
+		// a new instance, so that the config of the first variant stays untouched
+		Variant prefix = new Variant(first.scenario);
+		Path output = Path.of(first.config.controler().getOutputDirectory() + "-prefix");
+		prefix.config.controler().setOutputDirectory(output.toString());
+
+		EpisimConfigGroup prefixConfig = ConfigUtils.addOrGetModule(prefix.config, EpisimConfigGroup.class);
+		prefixConfig.setSnapshotInterval(days);
+
+		log.info("Simulating {} common days of {} until {}", days, family.size(), divergence);
+		MultiScenarioRunner.runScenario(prefix.module, prefix.config, days);
+
+		return Optional.of(latestSnapshot(output).orElseThrow(() -> new IllegalStateException("No snapshot written to " + output)));
+	}
+
+	/**
+	 * Continues a run from its latest snapshot, or starts it from the beginning if there is none.
+	 * While running, a snapshot is written every {@code checkpointInterval} days.
+	 */
+	public static void resume(Class<? extends AbstractSnzScenario2020_Milan> scenario, int iterations, int checkpointInterval) throws IOException {
+
+		Variant v = new Variant(scenario);
+		checkSnapshots(v);
+
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(v.config, EpisimConfigGroup.class);
+		episimConfig.setSnapshotInterval(checkpointInterval);
+
+		Optional<Path> snapshot = latestSnapshot(Path.of(v.config.controler().getOutputDirectory()));
+		snapshot.ifPresent(s -> {
+			log.info("Resuming {} from {}", v.name, s);
+			episimConfig.setStartFromSnapshot(s.toString());
+		});
+
+		MultiScenarioRunner.runScenario(v.module, v.config, iterations);
+	}
+
+	/**
+	 * Fails for configs whose state is not part of the episim snapshot and can not be rebuilt from it.
+	 */
+	private static void checkSnapshots(Variant v) {
+		MilanEngineConfigGroup engineConfig = ConfigUtils.addOrGetModule(v.config, MilanEngineConfigGroup.class);
+		if (engineConfig.getTracingQueueSize() > 0 || engineConfig.getTracingContactsPerDay() > 0)
+			throw new IllegalArgumentException(v.name + " can not be forked or resumed, milanEngine.tracingQueueSize " +
+					"and milanEngine.tracingContactsPerDay do not support snapshots");
+	}
+
+	/**
+	 * Returns the first date at which the policies of the given configs differ.
+	 * Configs are expected to be equal apart from their policy, which is either a {@link org.matsim.episim.policy.FixedPolicy}
+	 * or a {@link CompiledPolicy}.
+	 */
+	static LocalDate divergenceDate(LocalDate start, List<Config> configs) {
+
+		List<Map<String, Object>> policies = new ArrayList<>();
+		Set<Class<?>> policyClasses = new HashSet<>();
+		for (Config config : configs) {
+			EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+			policyClasses.add(episimConfig.getPolicyClass());
+
+			Map<String, Object> policy = episimConfig.getPolicy().root().unwrapped();
+			policies.add(episimConfig.getPolicyClass() == CompiledPolicy.class ? byActivity(policy) : policy);
+		}
+
+		if (policyClasses.size() > 1)
+			return start;
+
+		Set<String> keys = new TreeSet<>();
+		policies.forEach(p -> keys.addAll(p.keySet()));
+
+		LocalDate divergence = LocalDate.MAX;
+		for (String key : keys) {
+
+			List<Map<LocalDate, Object>> byDate = new ArrayList<>();
+			for (Map<String, Object> policy : policies) {
+				Optional<Map<LocalDate, Object>> entries = datedEntries(policy.get(key));
+				// entries which are not keyed by date can not be compared day by day
+				if (entries.isEmpty()) {
+					if (!policies.stream().allMatch(p -> Objects.equals(p.get(key), policy.get(key))))
+						return start;
+					byDate = null;
+					break;
+				}
+				byDate.add(entries.get());
+			}
+
+			if (byDate == null)
+				continue;
+
+			Set<LocalDate> dates = new TreeSet<>();
+			byDate.forEach(m -> dates.addAll(m.keySet()));
+
+			for (LocalDate date : dates) {
+				Object first = byDate.get(0).get(date);
+				if (!byDate.stream().allMatch(m -> Objects.equals(m.get(date), first))) {
+					if (date.isBefore(divergence))
+						divergence = date;
+					break;
+				}
+			}
+		}
+
+		return divergence.isBefore(start) ? start : divergence;
+	}
+
+	/**
+	 * Converts the lists of a {@link PolicyCompiler#buildCompiled() compiled policy} into the layout of the fixed policy,
+	 * i.e. the entries of each activity by date. Ramps of an activity are listed by their first date under a separate key,
+	 * so that a change of any point diverges at the start of the ramp.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> byActivity(Map<String, Object> compiled) {
+		Map<String, Object> result = new TreeMap<>();
+
+		for (Map<String, Object> e : (List<Map<String, Object>>) compiled.getOrDefault(PolicyCompiler.ENTRIES, List.of())) {
+			for (String act : (List<String>) e.get(PolicyCompiler.ACTIVITIES)) {
+				((Map<String, List<Object>>) result.computeIfAbsent(act, k -> new TreeMap<>()))
+						.computeIfAbsent((String) e.get(PolicyCompiler.DATE), k -> new ArrayList<>())
+						.add(e.get(PolicyCompiler.RESTRICTION));
+			}
+		}
+
+		for (Map<String, Object> r : (List<Map<String, Object>>) compiled.getOrDefault(PolicyCompiler.RAMPS, List.of())) {
+			List<Map<String, Object>> points = (List<Map<String, Object>>) r.get(PolicyCompiler.POINTS);
+			for (String act : (List<String>) r.get(PolicyCompiler.ACTIVITIES)) {
+				((Map<String, List<Object>>) result.computeIfAbsent(PolicyCompiler.RAMPS + " " + act, k -> new TreeMap<>()))
+						.computeIfAbsent((String) points.get(0).get(PolicyCompiler.DATE), k -> new ArrayList<>())
+						.add(points);
+			}
+		}
+
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Optional<Map<LocalDate, Object>> datedEntries(Object value) {
+		if (!(value instanceof Map))
+			return Optional.empty();
+
+		Map<LocalDate, Object> result = new TreeMap<>();
+		for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+			try {
+				result.put(LocalDate.parse(e.getKey()), e.getValue());
+			} catch (DateTimeParseException ex) {
+				return Optional.empty();
+			}
+		}
+		return Optional.of(result);
+	}
+
+	/**
+	 * Key of all config parameters that have to be equal for variants to share a prefix.
+	 * Policy and output directory are excluded.
+	 */
+	static String familyKey(Config config) {
+		StringBuilder b = new StringBuilder();
+		for (ConfigGroup group : new TreeMap<>(config.getModules()).values()) {
+			appendParams(b, group);
+		}
+		return b.toString();
+	}
+
+	private static void appendParams(StringBuilder b, ConfigGroup group) {
+		b.append('[').append(group.getName());
+		new TreeMap<>(group.getParams()).forEach((k, v) -> {
+			if (k.toLowerCase().contains("policy") || k.equals("outputDirectory"))
+				return;
+			b.append(' ').append(k).append('=').append(v);
+		});
+
+		for (Collection<? extends ConfigGroup> sets : new TreeMap<>(group.getParameterSets()).values()) {
+			for (ConfigGroup set : sets) {
+				appendParams(b, set);
+			}
+		}
+		b.append(']');
+	}
+
+	static Optional<Path> latestSnapshot(Path output) throws IOException {
+		if (!Files.isDirectory(output))
+			return Optional.empty();
+
+		// file names contain the zero padded day, so the last one in order is the latest
+		try (Stream<Path> files = Files.list(output)) {
+			return files.filter(p -> p.getFileSystem().getPathMatcher("glob:" + SNAPSHOT_GLOB).matches(p.getFileName()))
+					.max(Path::compareTo);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Usage: {@code ForkRunner <threads> <iterations> <scenario>...}
+	 */
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+
+		if (args.length < 3) {
+			System.err.println("Usage: ForkRunner <threads> <iterations> <scenario>...");
+			System.exit(1);
+		}
+
+		List<Class<? extends AbstractSnzScenario2020_Milan>> scenarios = new ArrayList<>();
+		for (int i = 2; i < args.length; i++) {
+			scenarios.add(MultiScenarioRunner.scenarioClass(args[i]));
+		}
+
+		new ForkRunner(Integer.parseInt(args[0]), Integer.parseInt(args[1])).run(scenarios);
+	}
+
+	/**
+	 * Module and config of one scenario.
+	 */
+	private static final class Variant {
+
+		private final Class<? extends AbstractSnzScenario2020_Milan> scenario;
+		private final String name;
+		private final AbstractSnzScenario2020_Milan module;
+		private final Config config;
+
+		private Variant(Class<? extends AbstractSnzScenario2020_Milan> scenario) {
+			this.scenario = scenario;
+			this.name = scenario.getSimpleName();
+			this.module = MultiScenarioRunner.instantiate(scenario);
+			this.config = module.config();
+		}
+	}
+}
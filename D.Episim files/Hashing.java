@@ -0,0 +1,55 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+/**
+ * Counter-based random numbers, i.e. pure functions of seed and key.
+ * <p>
+ * Draws do not depend on the order in which persons, activities or containers are processed,
+ * so they are reproducible without sharing a random number generator.
+ */
+final class Hashing {
+
+	private Hashing() {
+	}
+
+	static long mix(long z) {
+		// finalizer of SplitMix64
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Random long of one key, e.g. a person, on one day. Every purpose needs its own {@code salt},
+	 * otherwise draws of different purposes for the same key and day are identical.
+	 */
+	static long hash(long seed, long salt, int key, int day) {
+		return mix(seed ^ salt ^ mix(((long) key << 32) | (day & 0xffffffffL)));
+	}
+
+	/**
+	 * Uniform double in [0, 1) from the upper 53 bits of a random long.
+	 */
+	static double uniform(long random) {
+		return (random >>> 11) * 0x1.0p-53;
+	}
+}
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.households.Household;
+import org.matsim.households.Households;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Households in compressed sparse row form, indexed by the dense ids of an {@link IdRegistry}.
+ * <p>
+ * The members of household {@code h} are {@code members[offsets[h]] .. members[offsets[h + 1] - 1]},
+ * sorted by person index. Together with the household column of each person, finding and quarantining
+ * all members of a household is a scan over a contiguous part of one array.
+ * Used by the {@link EventDrivenProgressionModel} to quarantine the households of detected cases.
+ */
+public final class HouseholdIndex {
+
+	private static final Logger log = LogManager.getLogger(HouseholdIndex.class);
+
+	public static final int NO_HOUSEHOLD = -1;
+
+	private final int[] offsets;
+	private final int[] members;
+	private final int[] householdOf;
+
+	private HouseholdIndex(int[] offsets, int[] members, int[] householdOf) {
+		this.offsets = offsets;
+		this.members = members;
+		this.householdOf = householdOf;
+	}
+
+	/**
+	 * Builds the index, households and members are registered in the id registry if not known yet.
+	 */
+	public static HouseholdIndex build(Households households, IdRegistry ids) {
+
+		for (Household household : households.getHouseholds().values()) {
+			ids.register(IdRegistry.Kind.household, household.getId());
+			household.getMemberIds().forEach(p -> ids.register(IdRegistry.Kind.person, p));
+		}
+
+		int n = ids.size(IdRegistry.Kind.household);
+		int[] offsets = new int[n + 1];
+		for (Household household : households.getHouseholds().values()) {
+			offsets[ids.register(IdRegistry.Kind.household, household.getId()) + 1] = household.getMemberIds().size();
+		}
+
+		for (int h = 0; h < n; h++) {
+			offsets[h + 1] += offsets[h];
+		}
+
+		int[] members = new int[offsets[n]];
+		int[] householdOf = new int[ids.size(IdRegistry.Kind.person)];
+		Arrays.fill(householdOf, NO_HOUSEHOLD);
+
+		for (Household household : households.getHouseholds().values()) {
+			int h = ids.register(IdRegistry.Kind.household, household.getId());
+			int i = offsets[h];
+			for (Id<Person> member : household.getMemberIds()) {
+				int person = ids.register(IdRegistry.Kind.person, member);
+				if (householdOf[person] != NO_HOUSEHOLD)
+					throw new IllegalStateException("Person " + member + " is member of more than one household");
+
+				householdOf[person] = h;
+				members[i++] = person;
+			}
+			Arrays.sort(members, offsets[h], i);
+		}
+
+		log.info("Indexed {} households with {} members", n, members.length);
+
+		return new HouseholdIndex(offsets, members, householdOf);
+	}
+
+	public int numberOfHouseholds() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * Household of a person, or {@link #NO_HOUSEHOLD}.
+	 */
+	public int household(int person) {
+		return person < householdOf.length ? householdOf[person] : NO_HOUSEHOLD;
+	}
+
+	public int size(int household) {
+		return offsets[household + 1] - offsets[household];
+	}
+
+	/**
+	 * Person index of the i-th member of a household.
+	 */
+	public int member(int household, int i) {
+		return members[offsets[household] + i];
+	}
+
+	public void forEachMember(int household, IntConsumer consumer) {
+		for (int i = offsets[household]; i < offsets[household + 1]; i++) {
+			consumer.accept(members[i]);
+		}
+	}
+
+	/**
+	 * Bytes of the primitive arrays.
+	 */
+	public long byteSize() {
+		return (offsets.length + members.length + householdOf.length) * 4L;
+	}
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.households.Household;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns dense int indices to the string ids of persons, containers, links, vehicles, households and activity types.
+ * <p>
+ * Ids are registered while loading, afterwards the registry can be {@link #freeze() frozen}, which drops the hash maps.
+ * <p>
+ * This is a utility of the Milan classes working on dense indices: {@link BinaryEvents} writes its string tables from it,
+ * {@link HouseholdIndex} indexes households and members with it, and the {@link EventDrivenProgressionModel} registers
+ * the episim person ids in order, so that its indices are the ones of {@link Id#index()}.
+ * The episim replay and contact models keep working with their own {@link Id} objects.
+ */
+public final class IdRegistry {
+
+	/**
+	 * Kind of id, every kind has its own index space.
+	 */
+	public enum Kind {
+		person,
+		/**
+		 * Facility of an activity.
+		 */
+		container,
+		/**
+		 * Link of an activity without facility, kept apart from facilities since their ids may coincide.
+		 */
+		link,
+		vehicle,
+		household,
+		activityType
+	}
+
+	private final Map<Kind, Map<String, Integer>> index = new EnumMap<>(Kind.class);
+	private final Map<Kind, List<String>> values = new EnumMap<>(Kind.class);
+	private boolean frozen;
+
+	public IdRegistry() {
+		for (Kind kind : Kind.values()) {
+			index.put(kind, new HashMap<>());
+			values.put(kind, new ArrayList<>());
+		}
+	}
+
+	/**
+	 * Returns the index of an id, registering it if it is not known yet.
+	 */
+	public int register(Kind kind, String id) {
+		if (frozen)
+			throw new IllegalStateException("Registry is frozen, can not add " + kind + " " + id);
+
+		List<String> list = values.get(kind);
+		return index.get(kind).computeIfAbsent(id, k -> {
+			list.add(k);
+			return list.size() - 1;
+		});
+	}
+
+	public int register(Kind kind, Id<?> id) {
+		return register(kind, id.toString());
+	}
+
+	/**
+	 * Returns the index of a known id, or -1. Only available before the registry is frozen.
+	 */
+	public int lookup(Kind kind, String id) {
+		if (frozen)
+			throw new IllegalStateException("Registry is frozen, lookups by id are not available anymore");
+
+		return index.get(kind).getOrDefault(id, -1);
+	}
+
+	/**
+	 * String id of an index, used when writing output.
+	 */
+	public String id(Kind kind, int index) {
+		return values.get(kind).get(index);
+	}
+
+	public int size(Kind kind) {
+		return values.get(kind).size();
+	}
+
+	/**
+	 * Registers all ids contained in binary events, in the order of its tables.
+	 */
+	public void registerAll(BinaryEvents events) {
+		for (int i = 0; i < events.numberOfPersons(); i++) register(Kind.person, events.personId(i));
+		for (int i = 0; i < events.numberOfContainers(); i++) register(Kind.container, events.containerId(i));
+		for (int i = 0; i < events.numberOfLinks(); i++) register(Kind.link, events.linkId(i));
+		for (int i = 0; i < events.numberOfVehicles(); i++) register(Kind.vehicle, events.vehicleId(i));
+		for (int i = 0; i < events.numberOfActTypes(); i++) register(Kind.activityType, events.actTypeName(i));
+	}
+
+	/**
+	 * Registers households, their members, facilities and vehicles of a scenario.
+	 */
+	public void registerAll(Scenario scenario) {
+		if (scenario.getHouseholds() != null) {
+			for (Household household : scenario.getHouseholds().getHouseholds().values()) {
+				register(Kind.household, household.getId());
+				household.getMemberIds().forEach(p -> register(Kind.person, p));
+			}
+		}
+
+		if (scenario.getActivityFacilities() != null)
+			scenario.getActivityFacilities().getFacilities().keySet().forEach(id -> register(Kind.container, id));
+
+		if (scenario.getVehicles() != null)
+			scenario.getVehicles().getVehicles().keySet().forEach(id -> register(Kind.vehicle, id));
+	}
+
+	/**
+	 * Drops the lookup maps. Afterwards ids can only be resolved from indices.
+	 */
+	public void freeze() {
+		frozen = true;
+		for (Kind kind : Kind.values()) {
+			index.put(kind, Map.of());
+			values.put(kind, List.copyOf(values.get(kind)));
+		}
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+}
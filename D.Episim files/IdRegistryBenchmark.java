@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the id lookups of a pass over the events with string keyed maps against dense indices from an {@link IdRegistry}.
+ * <p>
+ * Both variants keep the same state per person and container (time of entering and number of visits).
+ * Reports retained heap of the state and hash lookups per replayed event.
+ * The ids are the ones of the given events, but the pass is not the episim replay, which uses its own {@link org.matsim.api.core.v01.Id}s.
+ * It measures the lookups of the classes using the registry, i.e. {@link BinaryEvents}, {@link HouseholdIndex} and the
+ * {@link EventDrivenProgressionModel}.
+ * Usage: {@code IdRegistryBenchmark <events.xml.gz|events.bin> [repetitions]}
+ */
+public final class IdRegistryBenchmark {
+
+	private IdRegistryBenchmark() {
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			System.err.println("Usage: IdRegistryBenchmark <events.xml.gz|events.bin> [repetitions]");
+			System.exit(1);
+		}
+
+		Path path = Path.of(args[0]);
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		Path binary = path.toString().endsWith(".bin") ? path : Files.createTempFile("events", ".bin");
+		if (binary != path)
+			BinaryEvents.convert(path, binary);
+
+		BinaryEvents events = BinaryEvents.open(binary);
+		int n = events.size();
+
+		// string ids as they would come from the events
+		String[] persons = new String[n];
+		String[] targets = new String[n];
+		for (int i = 0; i < n; i++) {
+			persons[i] = events.personId(events.person(i));
+			if (events.type(i) > BinaryEvents.ACT_END)
+				targets[i] = "vehicle:" + events.vehicleId(events.target(i));
+			else if (events.isLink(i))
+				targets[i] = "link:" + events.linkId(events.target(i));
+			else
+				targets[i] = events.containerId(events.target(i));
+		}
+
+		long before = usedHeap();
+		IdRegistry ids = new IdRegistry();
+		ids.registerAll(events);
+		ids.freeze();
+
+		int[] enterTime = new int[ids.size(IdRegistry.Kind.person)];
+		int[] visits = new int[ids.size(IdRegistry.Kind.container) + ids.size(IdRegistry.Kind.link) + ids.size(IdRegistry.Kind.vehicle)];
+		int linkOffset = ids.size(IdRegistry.Kind.container);
+		int vehicleOffset = linkOffset + ids.size(IdRegistry.Kind.link);
+		long start = System.nanoTime();
+		for (int r = 0; r < repetitions; r++) {
+			for (int i = 0; i < n; i++) {
+				enterTime[events.person(i)] = events.time(i);
+				int target = events.target(i);
+				if (events.type(i) > BinaryEvents.ACT_END)
+					target += vehicleOffset;
+				else if (events.isLink(i))
+					target += linkOffset;
+				visits[target]++;
+			}
+		}
+		long denseTime = System.nanoTime() - start;
+		long denseHeap = usedHeap() - before;
+
+		before = usedHeap();
+		Map<String, int[]> personState = new HashMap<>();
+		Map<String, int[]> containerVisits = new HashMap<>();
+		long lookups = 0;
+		start = System.nanoTime();
+		for (int r = 0; r < repetitions; r++) {
+			for (int i = 0; i < n; i++) {
+				personState.computeIfAbsent(persons[i], k -> new int[1])[0] = events.time(i);
+				containerVisits.computeIfAbsent(targets[i], k -> new int[1])[0]++;
+				lookups += 2;
+			}
+		}
+		long stringTime = System.nanoTime() - start;
+		long stringHeap = usedHeap() - before;
+
+		long replayed = (long) n * repetitions;
+		System.out.printf("events: %d, repetitions: %d%n", n, repetitions);
+		System.out.printf("string keys: %,d bytes heap, %.2f hash lookups/event, %.1f ns/event%n",
+				stringHeap, (double) lookups / replayed, (double) stringTime / replayed);
+		System.out.printf("dense ids:   %,d bytes heap, %.2f hash lookups/event, %.1f ns/event%n",
+				denseHeap, 0.0, (double) denseTime / replayed);
+
+		// keep state reachable until heap was measured
+		if (personState.size() + containerVisits.size() + enterTime.length + visits.length == 0)
+			System.out.println();
+
+		if (binary != path)
+			Files.delete(binary);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Reads the daily values of an episim {@code infections.txt} output.
+ */
+public final class InfectionsOutput {
+
+	public static final String FILE = "infections.txt";
+
+	private InfectionsOutput() {
+	}
+
+	/**
+	 * Reads the given columns for every day of a run. Rows of individual districts are summed up,
+	 * unless the file contains a {@code total} row for the day.
+	 *
+	 * @param output  output directory of the run
+	 * @param columns names of the columns to read
+	 * @return values by day, in the order of {@code columns}
+	 */
+	public static SortedMap<Integer, double[]> read(Path output, List<String> columns) throws IOException {
+
+		SortedMap<Integer, double[]> sums = new TreeMap<>();
+		SortedMap<Integer, double[]> totals = new TreeMap<>();
+
+		try (BufferedReader reader = Files.newBufferedReader(output.resolve(FILE))) {
+
+			String line = reader.readLine();
+			if (line == null)
+				throw new IOException("Empty infections file in " + output);
+
+			List<String> header = Arrays.asList(line.split("\t"));
+			int day = header.indexOf("day");
+			int district = header.indexOf("district");
+			if (day < 0)
+				throw new IOException("No day column in " + output.resolve(FILE));
+
+			int[] idx = new int[columns.size()];
+			for (int i = 0; i < idx.length; i++) {
+				idx[i] = header.indexOf(columns.get(i));
+				if (idx[i] < 0)
+					throw new IOException("Unknown column " + columns.get(i) + " in " + output.resolve(FILE));
+			}
+
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank())
+					continue;
+
+				String[] row = line.split("\t");
+				int d = Integer.parseInt(row[day]);
+				boolean total = district >= 0 && "total".equals(row[district]);
+
+				double[] values = (total ? totals : sums).computeIfAbsent(d, k -> new double[idx.length]);
+				for (int i = 0; i < idx.length; i++) {
+					values[i] += Double.parseDouble(row[idx[i]]);
+				}
+			}
+		}
+
+		sums.putAll(totals);
+		return sums;
+	}
+}
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.episim.EpisimContainer;
+import org.matsim.episim.EpisimPerson;
+import org.matsim.episim.EpisimPerson.DiseaseStatus;
+import org.matsim.episim.InfectionEventHandler;
+import org.matsim.episim.TracingConfigGroup;
+import org.matsim.episim.model.ContactModel;
+import org.matsim.episim.policy.Restriction;
+
+import java.util.Map;
+
+/**
+ * Contact model that skips the wrapped model for containers without contagious persons,
+ * using the {@link ContagiousOccupancy} of facilities and vehicles.
+ * <p>
+ * Without a contagious person nobody can be infected, the only other effect of the evaluation is the episim history of
+ * traceable contacts. Leaving persons that are traceable are therefore always evaluated once tracing has started.
+ * Results are the same as without skipping, except for random draws of the wrapped model that are not made anymore.
+ */
+public final class LazyContactModel implements ContactModel {
+
+	private static final Logger log = LogManager.getLogger(LazyContactModel.class);
+
+	private final ContactModel delegate;
+	private final TracingConfigGroup tracingConfig;
+
+	private final ContagiousOccupancy facilities = new ContagiousOccupancy();
+	private final ContagiousOccupancy vehicles = new ContagiousOccupancy();
+
+	private int iteration;
+
+	public LazyContactModel(ContactModel delegate, TracingConfigGroup tracingConfig) {
+		this.delegate = delegate;
+		this.tracingConfig = tracingConfig;
+	}
+
+	private static boolean isContagious(EpisimPerson person) {
+		DiseaseStatus status = person.getDiseaseStatus();
+		return status == DiseaseStatus.contagious || status == DiseaseStatus.showingSymptoms;
+	}
+
+	/**
+	 * Counts the contagious persons of a container, the first time it is seen on this day.
+	 *
+	 * @param except person not counted, because it is added afterwards
+	 */
+	private void update(ContagiousOccupancy occupancy, int index, EpisimContainer<?> container, EpisimPerson except) {
+		if (occupancy.isCurrent(index, iteration))
+			return;
+
+		int n = 0;
+		for (EpisimPerson person : container.getPersons()) {
+			if (person != except && isContagious(person))
+				n++;
+		}
+		occupancy.reset(index, iteration, n);
+	}
+
+	private void enter(ContagiousOccupancy occupancy, EpisimPerson person, EpisimContainer<?> container) {
+		int index = container.getContainerId().index();
+		update(occupancy, index, container, person);
+		occupancy.enter(index, isContagious(person));
+	}
+
+	/**
+	 * Updates the occupancy for a leaving person and returns whether its contacts need to be evaluated.
+	 */
+	private boolean leave(ContagiousOccupancy occupancy, EpisimPerson person, EpisimContainer<?> container) {
+		int index = container.getContainerId().index();
+		update(occupancy, index, container, null);
+
+		boolean contagious = isContagious(person);
+		boolean needed = occupancy.needsEvaluation(index, contagious)
+				|| (person.isTraceable() && iteration >= tracingConfig.getPutTraceablePersonsInQuarantineAfterDay());
+
+		occupancy.leave(index, contagious);
+		return needed;
+	}
+
+	@Override
+	public void notifyEnterVehicle(EpisimPerson personEnteringVehicle, InfectionEventHandler.EpisimVehicle vehicle, double now) {
+		enter(vehicles, personEnteringVehicle, vehicle);
+		delegate.notifyEnterVehicle(personEnteringVehicle, vehicle, now);
+	}
+
+	@Override
+	public void notifyEnterFacility(EpisimPerson personEnteringFacility, InfectionEventHandler.EpisimFacility facility, double now) {
+		enter(facilities, personEnteringFacility, facility);
+		delegate.notifyEnterFacility(personEnteringFacility, facility, now);
+	}
+
+	@Override
+	public void infectionDynamicsVehicle(EpisimPerson personLeavingVehicle, InfectionEventHandler.EpisimVehicle vehicle, double now) {
+		if (leave(vehicles, personLeavingVehicle, vehicle))
+			delegate.infectionDynamicsVehicle(personLeavingVehicle, vehicle, now);
+	}
+
+	@Override
+	public void infectionDynamicsFacility(EpisimPerson personLeavingFacility, InfectionEventHandler.EpisimFacility facility, double now) {
+		if (leave(facilities, personLeavingFacility, facility))
+			delegate.infectionDynamicsFacility(personLeavingFacility, facility, now);
+	}
+
+	@Override
+	public void setIteration(int iteration) {
+		long[] f = facilities.getAndResetCounts();
+		long[] v = vehicles.getAndResetCounts();
+		if (iteration > 1)
+			log.info("Evaluated {} and skipped {} container visits on day {}", f[0] + v[0], f[1] + v[1], this.iteration);
+
+		this.iteration = iteration;
+		delegate.setIteration(iteration);
+	}
+
+	@Override
+	public void setRestrictionsForIteration(int iteration, Map<String, Restriction> restrictions) {
+		delegate.setRestrictionsForIteration(iteration, restrictions);
+	}
+}
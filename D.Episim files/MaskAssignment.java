@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.episim.model.FaceMask;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Mask worn by each person per activity, drawn once instead of for every contact.
+ * <p>
+ * The mask is stored with 2 bits per person in one long column per activity. A column is only drawn again
+ * when the mask fractions of its activity change, e.g. on each day of a {@link RestrictionRamp}.
+ * Draws are a hash of seed, person, activity and the day of the change, so they are reproducible
+ * and do not depend on the order in which persons or containers are processed.
+ */
+public final class MaskAssignment {
+
+	private static final Logger log = LogManager.getLogger(MaskAssignment.class);
+
+	/**
+	 * Salt of the mask draws, see {@link Hashing#hash(long, long, int, int)}.
+	 */
+	private static final long SALT = 0x4d41534b53000000L; // "MASKS"
+
+	/**
+	 * Masks in the order of their 2 bit code, code 0 is no mask.
+	 */
+	private static final FaceMask[] MASKS = {FaceMask.NONE, FaceMask.CLOTH, FaceMask.SURGICAL, FaceMask.N95};
+
+	private static final int PER_LONG = 32;
+
+	private final long seed;
+	private final int persons;
+
+	/**
+	 * Columns per activity, null while nobody wears a mask.
+	 */
+	private final long[][] columns;
+	private final double[][] fractions;
+
+	private int recomputations = 0;
+
+	public MaskAssignment(long seed, int persons, int activities) {
+		this.seed = seed;
+		this.persons = persons;
+		this.columns = new long[activities][];
+		this.fractions = new double[activities][MASKS.length];
+	}
+
+	/**
+	 * Updates all activities of the matrix for this day.
+	 */
+	public void update(int day, RestrictionMatrix matrix) {
+		for (int act = 0; act < columns.length; act++) {
+			Object masks = matrix.params(day, act).get("masks");
+			update(day, act, masks instanceof Map ? (Map<?, ?>) masks : Map.of());
+		}
+	}
+
+	/**
+	 * Sets the mask fractions of an activity, keyed by {@link FaceMask} or its name.
+	 *
+	 * @return whether the masks have been drawn again
+	 */
+	public boolean update(int day, int act, Map<?, ?> masks) {
+
+		double[] f = new double[MASKS.length];
+		for (Map.Entry<?, ?> e : masks.entrySet()) {
+			FaceMask mask = FaceMask.valueOf(e.getKey().toString());
+			f[code(mask)] = ((Number) e.getValue()).doubleValue();
+		}
+
+		if (Arrays.equals(f, fractions[act]))
+			return false;
+
+		fractions[act] = f;
+		recomputations++;
+
+		if (f[1] + f[2] + f[3] == 0) {
+			columns[act] = null;
+			return true;
+		}
+
+		long[] column = columns[act] != null ? columns[act] : new long[(persons + PER_LONG - 1) / PER_LONG];
+		Arrays.fill(column, 0);
+
+		long h = Hashing.hash(seed, SALT, act, day);
+		for (int person = 0; person < persons; person++) {
+
+			double u = Hashing.uniform(Hashing.mix(h + person * 0x9e3779b97f4a7c15L));
+
+			// cumulative fractions in the order of the codes
+			int code = 0;
+			double sum = 0;
+			for (int m = 1; m < MASKS.length; m++) {
+				sum += f[m];
+				if (u < sum) {
+					code = m;
+					break;
+				}
+			}
+
+			column[person / PER_LONG] |= (long) code << ((person % PER_LONG) * 2);
+		}
+
+		columns[act] = column;
+		log.debug("Drew masks of activity {} on day {}", act, day);
+		return true;
+	}
+
+	private static int code(FaceMask mask) {
+		for (int i = 0; i < MASKS.length; i++) {
+			if (MASKS[i] == mask)
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown mask " + mask);
+	}
+
+	/**
+	 * Mask worn by a person during an activity.
+	 */
+	public FaceMask getMask(int person, int act) {
+		long[] column = columns[act];
+		if (column == null)
+			return FaceMask.NONE;
+
+		return MASKS[(int) (column[person / PER_LONG] >>> ((person % PER_LONG) * 2)) & 3];
+	}
+
+	/**
+	 * Number of columns that have been drawn, for reporting.
+	 */
+	public int getRecomputations() {
+		return recomputations;
+	}
+
+	/**
+	 * Bytes used by the columns.
+	 */
+	public long byteSize() {
+		long size = 0;
+		for (long[] column : columns) {
+			if (column != null)
+				size += column.length * 8L;
+		}
+		return size;
+	}
+}
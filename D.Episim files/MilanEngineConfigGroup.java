@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.core.config.ReflectiveConfigGroup;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Engine options of the Milan scenarios, in addition to the {@link org.matsim.episim.EpisimConfigGroup}.
+ * All options are disabled by default, so results stay the same as without this group.
+ */
+public final class MilanEngineConfigGroup extends ReflectiveConfigGroup {
+
+	public static final String GROUP_NAME = "milanEngine";
+
+	private static final String LAZY_CONTAINERS = "lazyContainers";
+	private static final String COMPILED_POLICY = "compiledPolicy";
+	private static final String MASK_ASSIGNMENT = "maskAssignment";
+	private static final String TRACING_CONTACTS_PER_DAY = "tracingContactsPerDay";
+	private static final String TRACING_QUEUE_SIZE = "tracingQueueSize";
+	private static final String TRACING_PRIORITY = "tracingPriority";
+	private static final String EVENT_DRIVEN_PROGRESSION = "eventDrivenProgression";
+
+	/**
+	 * Evaluate contacts only in containers with at least one contagious person, using {@link LazyContactModel}.
+	 */
+	private boolean lazyContainers = false;
+
+	/**
+	 * Use the {@link CompiledPolicy} instead of the fixed policy, for scenarios built with {@link PolicyCompiler}.
+	 */
+	private boolean compiledPolicy = false;
+
+	/**
+	 * Draw masks once per person and activity with {@link MilanFaceMaskModel}, instead of for every contact.
+	 */
+	private boolean maskAssignment = false;
+
+	/**
+	 * Contacts kept per person and day in the {@link ContactRingBuffer}. 0 keeps the unbounded episim history.
+	 * Requires {@link #eventDrivenProgression}.
+	 */
+	private int tracingContactsPerDay = 0;
+
+	/**
+	 * Maximum pending cases of the {@link TracingScheduler}. 0 traces every case when it is detected.
+	 * Requires {@link #eventDrivenProgression}.
+	 */
+	private int tracingQueueSize = 0;
+
+	/**
+	 * Order in which pending cases are traced.
+	 */
+	private TracingScheduler.Priority tracingPriority = TracingScheduler.Priority.oldest;
+
+	/**
+	 * Progress only persons with a transition due, using {@link EventDrivenProgressionModel}.
+	 */
+	private boolean eventDrivenProgression = false;
+
+	public MilanEngineConfigGroup() {
+		super(GROUP_NAME);
+	}
+
+	@StringGetter(LAZY_CONTAINERS)
+	public boolean isLazyContainers() {
+		return lazyContainers;
+	}
+
+	@StringSetter(LAZY_CONTAINERS)
+	public void setLazyContainers(boolean lazyContainers) {
+		this.lazyContainers = lazyContainers;
+	}
+
+	@StringGetter(COMPILED_POLICY)
+	public boolean isCompiledPolicy() {
+		return compiledPolicy;
+	}
+
+	@StringSetter(COMPILED_POLICY)
+	public void setCompiledPolicy(boolean compiledPolicy) {
+		this.compiledPolicy = compiledPolicy;
+	}
+
+	@StringGetter(MASK_ASSIGNMENT)
+	public boolean isMaskAssignment() {
+		return maskAssignment;
+	}
+
+	@StringSetter(MASK_ASSIGNMENT)
+	public void setMaskAssignment(boolean maskAssignment) {
+		this.maskAssignment = maskAssignment;
+	}
+
+	@StringGetter(TRACING_CONTACTS_PER_DAY)
+	public int getTracingContactsPerDay() {
+		return tracingContactsPerDay;
+	}
+
+	@StringSetter(TRACING_CONTACTS_PER_DAY)
+	public void setTracingContactsPerDay(int tracingContactsPerDay) {
+		if (tracingContactsPerDay < 0)
+			throw new IllegalArgumentException("Number of contacts must not be negative");
+
+		this.tracingContactsPerDay = tracingContactsPerDay;
+	}
+
+	@StringGetter(TRACING_QUEUE_SIZE)
+	public int getTracingQueueSize() {
+		return tracingQueueSize;
+	}
+
+	@StringSetter(TRACING_QUEUE_SIZE)
+	public void setTracingQueueSize(int tracingQueueSize) {
+		if (tracingQueueSize < 0)
+			throw new IllegalArgumentException("Queue size must not be negative");
+
+		this.tracingQueueSize = tracingQueueSize;
+	}
+
+	@StringGetter(TRACING_PRIORITY)
+	public TracingScheduler.Priority getTracingPriority() {
+		return tracingPriority;
+	}
+
+	@StringSetter(TRACING_PRIORITY)
+	public void setTracingPriority(TracingScheduler.Priority tracingPriority) {
+		this.tracingPriority = tracingPriority;
+	}
+
+	@StringGetter(EVENT_DRIVEN_PROGRESSION)
+	public boolean isEventDrivenProgression() {
+		return eventDrivenProgression;
+	}
+
+	@StringSetter(EVENT_DRIVEN_PROGRESSION)
+	public void setEventDrivenProgression(boolean eventDrivenProgression) {
+		this.eventDrivenProgression = eventDrivenProgression;
+	}
+
+	@Override
+	public Map<String, String> getComments() {
+		Map<String, String> comments = super.getComments();
+		comments.put(LAZY_CONTAINERS, "Evaluate contacts only in containers where at least one contagious person is present. " +
+				"Traceable persons are still evaluated once tracing has started.");
+		comments.put(COMPILED_POLICY, "Precompute the restrictions of the policy for every day and activity. " +
+				"Conflicting entries are reported when the policy is built.");
+		comments.put(MASK_ASSIGNMENT, "Draw the mask of each person per activity only when the mask fractions change, " +
+				"instead of for every contact.");
+		comments.put(TRACING_CONTACTS_PER_DAY, "Record traceable contacts in a ring buffer with this many entries per person and day " +
+				"of the tracing period. Further contacts of a full day are dropped. 0 keeps the unbounded contact history. " +
+				"Requires eventDrivenProgression.");
+		comments.put(TRACING_QUEUE_SIZE, "Queue detected cases and trace them only within the daily tracing capacity, " +
+				"remaining cases are carried over. Maximum number of pending cases, 0 traces every case immediately. " +
+				"Requires eventDrivenProgression.");
+		comments.put(TRACING_PRIORITY, "Order of pending cases, one of " + Arrays.toString(TracingScheduler.Priority.values()) + ".");
+		comments.put(EVENT_DRIVEN_PROGRESSION, "Draw the next disease transition when a status is entered and only visit persons " +
+				"with a transition due, instead of updating the whole population every day. " +
+				"Supports snapshots unless tracingQueueSize or tracingContactsPerDay is set.");
+		return comments;
+	}
+}
@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.Config;
+import org.matsim.episim.EpisimConfigGroup;
+import org.matsim.episim.EpisimPerson;
+import org.matsim.episim.model.FaceMask;
+import org.matsim.episim.model.FaceMaskModel;
+import org.matsim.episim.policy.Restriction;
+
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Face mask model of the Milan scenarios that draws the masks with {@link MaskAssignment}.
+ * <p>
+ * The mask usage of an activity is read from its restriction when the activity is first seen on a day,
+ * which works the same for the {@link org.matsim.episim.policy.FixedPolicy} and the {@link CompiledPolicy}.
+ * A person keeps its mask per activity as long as the mask fractions do not change.
+ */
+public final class MilanFaceMaskModel implements FaceMaskModel {
+
+	private final long seed;
+
+	/**
+	 * Index of each activity, by container name.
+	 */
+	private final Map<String, Integer> activities = new HashMap<>();
+
+	/**
+	 * Day of the last update of each activity.
+	 */
+	private final int[] updated;
+
+	private MaskAssignment masks;
+	private int day;
+
+	@Inject
+	public MilanFaceMaskModel(Config config, EpisimConfigGroup episimConfig) {
+		this.seed = config.global().getRandomSeed();
+
+		for (EpisimConfigGroup.InfectionParams params : episimConfig.getContainerParams().values()) {
+			activities.put(params.getContainerName(), activities.size());
+		}
+
+		updated = new int[activities.size()];
+		Arrays.fill(updated, -1);
+	}
+
+	@Override
+	public void setIteration(int iteration) {
+		this.day = iteration;
+	}
+
+	@Override
+	public FaceMask getWornMask(EpisimPerson person, EpisimConfigGroup.InfectionParams act, Restriction restriction) {
+
+		// all persons are known once the contacts start
+		if (masks == null)
+			masks = new MaskAssignment(seed, Id.getNumberOfIds(Person.class), activities.size());
+
+		Integer a = activities.get(act.getContainerName());
+		if (a == null)
+			throw new IllegalArgumentException("Unknown activity " + act.getContainerName());
+
+		if (updated[a] != day) {
+			Map<FaceMask, Double> usage = restriction.getMaskUsage();
+			masks.update(day, a, usage != null ? usage : Map.of());
+			updated[a] = day;
+		}
+
+		return masks.getMask(person.getPersonId().index(), a);
+	}
+}
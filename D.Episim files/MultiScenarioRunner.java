@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.util.Modules;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.Config;
+import org.matsim.episim.EpisimModule;
+import org.matsim.episim.EpisimRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs several Milan scenario modules concurrently inside one JVM on a bounded thread pool.
+ * Every run keeps the output directory of its module and gets its own random seed, derived from one master seed.
+ * Scenario inputs are loaded only once and shared by all runs, see {@link ScenarioInputCache}.
+ */
+public final class MultiScenarioRunner {
+
+	private static final Logger log = LogManager.getLogger(MultiScenarioRunner.class);
+
+	private final int threads;
+	private final int iterations;
+	private final long seed;
+	private boolean shareInputs = true;
+
+	/**
+	 * @param threads    maximum number of scenarios running at the same time
+	 * @param iterations number of simulated days per run
+	 * @param seed       master seed, the seed of each run is derived from it
+	 */
+	public MultiScenarioRunner(int threads, int iterations, long seed) {
+		this.threads = threads;
+		this.iterations = iterations;
+		this.seed = seed;
+	}
+
+	/**
+	 * Whether runs should share their inputs through the {@link ScenarioInputCache}. Enabled by default.
+	 */
+	public void setShareInputs(boolean shareInputs) {
+		this.shareInputs = shareInputs;
+	}
+
+	/**
+	 * Runs all scenarios and waits for them to finish. A failing run does not stop the others.
+	 */
+	public void run(List<Class<? extends AbstractSnzScenario2020_Milan>> scenarios) throws InterruptedException {
+
+		SplittableRandom master = new SplittableRandom(seed);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for (Class<? extends AbstractSnzScenario2020_Milan> scenario : scenarios) {
+
+				// seed is drawn here, so that it does not depend on the order in which runs are started
+				long runSeed = master.split().nextLong();
+				futures.add(executor.submit(() -> {
+					AbstractSnzScenario2020_Milan module = instantiate(scenario);
+					Config config = module.config();
+					config.global().setRandomSeed(runSeed);
+
+					log.info("Starting {} with seed {} in {}", scenario.getSimpleName(), runSeed, config.controler().getOutputDirectory());
+					if (shareInputs)
+						runScenario(module, config, iterations, ScenarioInputCache.get().module(config));
+					else
+						runScenario(module, config, iterations);
+
+					log.info("Finished {}", scenario.getSimpleName());
+					return null;
+				}));
+			}
+
+			int failed = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					failed++;
+					log.error("Run {} failed", scenarios.get(i).getSimpleName(), e.getCause());
+				}
+			}
+
+			if (shareInputs)
+				log.info(ScenarioInputCache.get().report(scenarios.size()));
+
+			if (failed > 0)
+				throw new IllegalStateException(failed + " of " + scenarios.size() + " runs failed");
+
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs one scenario module with the given (possibly modified) config in the current thread.
+	 */
+	public static void runScenario(AbstractSnzScenario2020_Milan module, Config config, int iterations, Module... overrides) {
+
+		Module configModule = new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(Config.class).toInstance(config);
+			}
+		};
+
+		Module scenario = Modules.override(module).with(Modules.combine(Modules.combine(overrides), configModule));
+		Injector injector = Guice.createInjector(Modules.override(new EpisimModule()).with(scenario));
+
+		injector.getInstance(EpisimRunner.class).run(iterations);
+	}
+
+	static AbstractSnzScenario2020_Milan instantiate(Class<? extends AbstractSnzScenario2020_Milan> scenario) {
+		try {
+			return scenario.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Could not create scenario " + scenario, e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Class<? extends AbstractSnzScenario2020_Milan> scenarioClass(String name) {
+		String className = name.contains(".") ? name : MultiScenarioRunner.class.getPackageName() + "." + name;
+		try {
+			Class<?> clazz = Class.forName(className);
+			if (!AbstractSnzScenario2020_Milan.class.isAssignableFrom(clazz))
+				throw new IllegalArgumentException(name + " is not a Milan scenario");
+
+			return (Class<? extends AbstractSnzScenario2020_Milan>) clazz;
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Unknown scenario " + name, e);
+		}
+	}
+
+	/**
+	 * Usage: {@code MultiScenarioRunner <threads> <iterations> <seed> <scenario>...},
+	 * scenarios can be given by their simple name, e.g. {@code ZonaRossa ZonaGialla_Tracciamento}.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+
+		if (args.length < 4) {
+			System.err.println("Usage: MultiScenarioRunner <threads> <iterations> <seed> <scenario>...");
+			System.exit(1);
+		}
+
+		List<Class<? extends AbstractSnzScenario2020_Milan>> scenarios = new ArrayList<>();
+		for (int i = 3; i < args.length; i++) {
+			scenarios.add(scenarioClass(args[i]));
+		}
+
+		new MultiScenarioRunner(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Long.parseLong(args[2]))
+				.run(scenarios);
+	}
+}
@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import java.util.Arrays;
+
+/**
+ * Online mean, variance and quantile estimation with constant memory.
+ * Mean and variance use Welford's algorithm, quantiles the P² algorithm of Jain and Chlamtac.
+ */
+public final class OnlineStats {
+
+	private static final double Z_95 = 1.959964;
+
+	private final double[] probabilities;
+	private final P2[] quantiles;
+
+	private long n;
+	private double mean;
+	private double m2;
+
+	/**
+	 * @param probabilities quantiles to estimate, e.g. 0.05, 0.5, 0.95
+	 */
+	public OnlineStats(double... probabilities) {
+		this.probabilities = probabilities.clone();
+		this.quantiles = new P2[probabilities.length];
+		for (int i = 0; i < probabilities.length; i++) {
+			quantiles[i] = new P2(probabilities[i]);
+		}
+	}
+
+	public void add(double x) {
+		n++;
+		double delta = x - mean;
+		mean += delta / n;
+		m2 += delta * (x - mean);
+
+		for (P2 q : quantiles) {
+			q.add(x);
+		}
+	}
+
+	public long getN() {
+		return n;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * Sample variance.
+	 */
+	public double getVariance() {
+		return n > 1 ? m2 / (n - 1) : 0;
+	}
+
+	public double getStd() {
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * Width of the 95% confidence interval of the mean.
+	 */
+	public double getConfidenceWidth() {
+		return n > 1 ? 2 * Z_95 * getStd() / Math.sqrt(n) : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Estimated quantile for the i-th probability given in the constructor.
+	 */
+	public double getQuantile(int i) {
+		return quantiles[i].get();
+	}
+
+	public double[] getProbabilities() {
+		return probabilities.clone();
+	}
+
+	/**
+	 * P² estimator for a single quantile.
+	 */
+	private static final class P2 {
+
+		private final double p;
+		private final double[] q = new double[5];
+		private final double[] pos = {1, 2, 3, 4, 5};
+		private final double[] desired;
+		private final double[] increment;
+		private int count;
+
+		private P2(double p) {
+			this.p = p;
+			this.desired = new double[]{1, 1 + 2 * p, 1 + 4 * p, 3 + 2 * p, 5};
+			this.increment = new double[]{0, p / 2, p, (1 + p) / 2, 1};
+		}
+
+		void add(double x) {
+
+			if (count < 5) {
+				q[count++] = x;
+				if (count == 5)
+					Arrays.sort(q);
+				return;
+			}
+
+			count++;
+
+			int k;
+			if (x < q[0]) {
+				q[0] = x;
+				k = 0;
+			} else if (x >= q[4]) {
+				q[4] = x;
+				k = 3;
+			} else {
+				k = 0;
+				while (x >= q[k + 1]) k++;
+			}
+
+			for (int i = k + 1; i < 5; i++) pos[i]++;
+			for (int i = 0; i < 5; i++) desired[i] += increment[i];
+
+			for (int i = 1; i < 4; i++) {
+				double d = desired[i] - pos[i];
+				if ((d >= 1 && pos[i + 1] - pos[i] > 1) || (d <= -1 && pos[i - 1] - pos[i] < -1)) {
+					int s = d >= 0 ? 1 : -1;
+					double candidate = parabolic(i, s);
+					if (q[i - 1] < candidate && candidate < q[i + 1])
+						q[i] = candidate;
+					else
+						q[i] = q[i] + s * (q[i + s] - q[i]) / (pos[i + s] - pos[i]);
+					pos[i] += s;
+				}
+			}
+		}
+
+		private double parabolic(int i, int s) {
+			return q[i] + s / (pos[i + 1] - pos[i - 1]) * ((pos[i] - pos[i - 1] + s) * (q[i + 1] - q[i]) / (pos[i + 1] - pos[i])
+					+ (pos[i + 1] - pos[i] - s) * (q[i] - q[i - 1]) / (pos[i] - pos[i - 1]));
+		}
+
+		double get() {
+			if (count == 0)
+				return Double.NaN;
+
+			if (count < 5) {
+				// exact quantile of the few values seen so far
+				double[] sorted = Arrays.copyOf(q, count);
+				Arrays.sort(sorted);
+				return sorted[(int) Math.min(count - 1, Math.round(p * (count - 1)))];
+			}
+			return q[2];
+		}
+	}
+}
@@ -27,7 +27,6 @@ import org.matsim.core.config.ConfigUtils;
 import org.matsim.episim.EpisimConfigGroup;
 import org.matsim.episim.EpisimUtils;
 import org.matsim.episim.TracingConfigGroup;
-import org.matsim.episim.policy.FixedPolicy;
 import org.matsim.episim.policy.Restriction;
 
 import java.nio.file.Path;
@@ -95,7 +94,7 @@ public class OpenMilan_Tracciamento extends AbstractSnzScenario2020_Milan {
 
 		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
 
-		episimConfig.setInputEventsFile(INPUT.resolve("output_events-0.25.xml.gz").toString()); //Importa eventi da file
+		episimConfig.setInputEventsFile(inputEvents(INPUT, "output_events-0.25.xml.gz")); //Importa eventi da file
 
 		episimConfig.setInitialInfections(5);
 		episimConfig.setStartDate("2020-02-16");
@@ -126,9 +125,8 @@ public class OpenMilan_Tracciamento extends AbstractSnzScenario2020_Milan {
 
 		config.controler().setOutputDirectory("./output-NoLockdown_Tracciamento");
 
-		episimConfig.setPolicy(FixedPolicy.class, FixedPolicy.config()
+		setPolicy(config, new PolicyCompiler()
 				.restrict(episimConfig.getStartDate(),Restriction.of(1),AbstractSnzScenario2020_Milan.DEFAULT_ACTIVITIES)
-				.build()
 		);
 
 		return config;
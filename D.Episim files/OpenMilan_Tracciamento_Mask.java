@@ -28,7 +28,6 @@ import org.matsim.episim.EpisimConfigGroup;
 import org.matsim.episim.EpisimUtils;
 import org.matsim.episim.TracingConfigGroup;
 import org.matsim.episim.model.FaceMask;
-import org.matsim.episim.policy.FixedPolicy;
 import org.matsim.episim.policy.Restriction;
 
 import java.nio.file.Path;
@@ -96,7 +95,7 @@ public class OpenMilan_Tracciamento_Mask extends AbstractSnzScenario2020_Milan {
 
 		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
 
-		episimConfig.setInputEventsFile(INPUT.resolve("output_events-0.25.xml.gz").toString()); //Importa eventi da file
+		episimConfig.setInputEventsFile(inputEvents(INPUT, "output_events-0.25.xml.gz")); //Importa eventi da file
 
 		episimConfig.setInitialInfections(5);
 		episimConfig.setStartDate("2020-02-16");
@@ -127,10 +126,9 @@ public class OpenMilan_Tracciamento_Mask extends AbstractSnzScenario2020_Milan {
 
 		config.controler().setOutputDirectory("./output-NoLockdown_Tracciamento_Mask");
 
-		episimConfig.setPolicy(FixedPolicy.class, FixedPolicy.config()
+		setPolicy(config, new PolicyCompiler()
 				.restrict("2020-03-09",Restriction.ofMask(FaceMask.CLOTH, 0.95*0.9),AbstractSnzScenario2020_Milan.DEFAULT_ACTIVITIES)
 				.restrict(episimConfig.getStartDate(),Restriction.of(1),AbstractSnzScenario2020_Milan.DEFAULT_ACTIVITIES)
-				.build()
 		);
 
 		return config;
@@ -0,0 +1,346 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.episim.policy.FixedPolicy;
+import org.matsim.episim.policy.Restriction;
+
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Drop-in replacement of {@link FixedPolicy.ConfigBuilder} that records all restrictions,
+ * so they can be validated and compiled into a {@link RestrictionMatrix}.
+ * <p>
+ * {@link #build()} produces the same config as the fixed policy builder, {@link #buildCompiled()} the config
+ * of a {@link CompiledPolicy}. Both fail if two entries set the same parameter of an activity on the same day
+ * to different values, listing all conflicts at once.
+ * <p>
+ * {@link RestrictionRamp Ramps} are stored with their points only. The fixed policy, which is used unless
+ * {@link MilanEngineConfigGroup#isCompiledPolicy()} is set, still gets one entry per day of the ramp.
+ */
+public final class PolicyCompiler {
+
+	private static final Logger log = LogManager.getLogger(PolicyCompiler.class);
+
+	static final String ENTRIES = "entries";
+	static final String RAMPS = "ramps";
+	static final String POINTS = "points";
+	static final String DATE = "date";
+	static final String ACTIVITIES = "activities";
+	static final String RESTRICTION = "restriction";
+
+	private final List<Entry> entries = new ArrayList<>();
+	private final List<RampEntry> ramps = new ArrayList<>();
+
+	public PolicyCompiler restrict(String date, Restriction restriction, String... activities) {
+		return restrict(LocalDate.parse(date), restriction, activities);
+	}
+
+	public PolicyCompiler restrict(LocalDate date, Restriction restriction, String... activities) {
+		if (activities.length == 0)
+			throw new IllegalArgumentException("No activities given for restriction on " + date);
+
+		entries.add(new Entry(date, List.of(activities), params(restriction.asMap())));
+		return this;
+	}
+
+	/**
+	 * Adds a restriction that changes gradually over several days.
+	 */
+	public PolicyCompiler ramp(RestrictionRamp ramp, String... activities) {
+		if (activities.length == 0)
+			throw new IllegalArgumentException("No activities given for " + ramp);
+
+		ramps.add(new RampEntry(ramp, List.of(activities)));
+		return this;
+	}
+
+	/**
+	 * Removes unset parameters, so that partial restrictions can be merged.
+	 */
+	static Map<String, Object> params(Map<String, Object> map) {
+		Map<String, Object> params = new TreeMap<>();
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			Object value = e.getValue();
+			if (value == null || (value instanceof Map && ((Map<?, ?>) value).isEmpty())
+					|| (value instanceof Collection && ((Collection<?>) value).isEmpty()))
+				continue;
+
+			params.put(e.getKey(), value);
+		}
+		return params;
+	}
+
+	/**
+	 * Parameters that are set more than once for the same day and activity with different values.
+	 */
+	public List<String> getConflicts() {
+		List<String> conflicts = new ArrayList<>();
+		merge(entries, conflicts);
+
+		for (int i = 0; i < ramps.size(); i++) {
+			RampEntry r = ramps.get(i);
+			for (String act : r.activities) {
+
+				for (Entry e : entries) {
+					// entries after the ramp override its last value, as in the fixed policy
+					if (!e.activities.contains(act) || e.date.isBefore(r.ramp.getFirst()) || e.date.isAfter(r.ramp.getLast()))
+						continue;
+
+					for (String key : r.ramp.getKeys()) {
+						if (e.params.containsKey(key))
+							conflicts.add(String.format("%s %s: %s is set by %s", e.date, act, key, r.ramp));
+					}
+				}
+
+				for (RampEntry other : ramps.subList(i + 1, ramps.size())) {
+					if (!other.activities.contains(act) || other.ramp.getFirst().isAfter(r.ramp.getLast())
+							|| r.ramp.getFirst().isAfter(other.ramp.getLast()))
+						continue;
+
+					for (String key : r.ramp.getKeys()) {
+						if (other.ramp.getKeys().contains(key))
+							conflicts.add(String.format("%s: %s is set by overlapping %s and %s", act, key, r.ramp, other.ramp));
+					}
+				}
+			}
+		}
+
+		return conflicts;
+	}
+
+	private void checkConflicts() {
+		List<String> conflicts = getConflicts();
+		if (!conflicts.isEmpty())
+			throw new IllegalStateException("Conflicting restrictions in policy:\n" + String.join("\n", conflicts));
+	}
+
+	/**
+	 * Config for the {@link FixedPolicy}, the default of the Milan scenarios.
+	 * Ramps are expanded into one entry per day and activity here, only {@link #buildCompiled()} keeps them as points.
+	 */
+	public Config build() {
+		checkConflicts();
+
+		FixedPolicy.ConfigBuilder builder = FixedPolicy.config();
+		for (Entry e : entries) {
+			builder.restrict(e.date, Restriction.fromConfig(ConfigFactory.parseMap(e.params)), e.activities.toArray(new String[0]));
+		}
+
+		for (RampEntry r : ramps) {
+			for (LocalDate date = r.ramp.getFirst(); !date.isAfter(r.ramp.getLast()); date = date.plusDays(1)) {
+				builder.restrict(date, Restriction.fromConfig(ConfigFactory.parseMap(r.ramp.valueAt(date))), r.activities.toArray(new String[0]));
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Config for the {@link CompiledPolicy}.
+	 */
+	public Config buildCompiled() {
+		checkConflicts();
+
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (Entry e : entries) {
+			list.add(Map.of(DATE, e.date.toString(), ACTIVITIES, e.activities, RESTRICTION, e.params));
+		}
+
+		List<Map<String, Object>> rampList = new ArrayList<>();
+		for (RampEntry r : ramps) {
+			List<Map<String, Object>> points = new ArrayList<>();
+			for (int i = 0; i < r.ramp.getPoints().size(); i++) {
+				points.add(Map.of(DATE, r.ramp.getDate(i).toString(), RESTRICTION, r.ramp.getPoints().get(i)));
+			}
+			rampList.add(Map.of(ACTIVITIES, r.activities, POINTS, points));
+		}
+
+		return ConfigFactory.parseMap(Map.of(ENTRIES, list, RAMPS, rampList));
+	}
+
+	/**
+	 * Compiles the recorded restrictions for the given activities.
+	 */
+	public RestrictionMatrix compile(LocalDate start, List<String> activities) {
+		checkConflicts();
+		return compile(entries, ramps, start, activities);
+	}
+
+	/**
+	 * Compiles a config created by {@link #buildCompiled()}.
+	 */
+	public static RestrictionMatrix compile(Config compiled, LocalDate start, List<String> activities) {
+		List<Entry> entries = new ArrayList<>();
+		for (Config c : compiled.getConfigList(ENTRIES)) {
+			entries.add(new Entry(LocalDate.parse(c.getString(DATE)), c.getStringList(ACTIVITIES),
+					params(c.getConfig(RESTRICTION).root().unwrapped())));
+		}
+
+		List<RampEntry> ramps = new ArrayList<>();
+		if (compiled.hasPath(RAMPS)) {
+			for (Config c : compiled.getConfigList(RAMPS)) {
+				RestrictionRamp ramp = null;
+				for (Config p : c.getConfigList(POINTS)) {
+					LocalDate date = LocalDate.parse(p.getString(DATE));
+					Map<String, Object> params = params(p.getConfig(RESTRICTION).root().unwrapped());
+					ramp = ramp == null ? RestrictionRamp.from(date, params) : ramp.to(date, params);
+				}
+				ramps.add(new RampEntry(ramp, c.getStringList(ACTIVITIES)));
+			}
+		}
+
+		return compile(entries, ramps, start, activities);
+	}
+
+	/**
+	 * Merges all entries of the same activity and day, in the order they were added.
+	 */
+	private static Map<String, TreeMap<LocalDate, Map<String, Object>>> merge(List<Entry> entries, List<String> conflicts) {
+		Map<String, TreeMap<LocalDate, Map<String, Object>>> merged = new LinkedHashMap<>();
+		for (Entry e : entries) {
+			for (String act : e.activities) {
+				Map<String, Object> params = merged.computeIfAbsent(act, k -> new TreeMap<>())
+						.computeIfAbsent(e.date, k -> new TreeMap<>());
+
+				for (Map.Entry<String, Object> p : e.params.entrySet()) {
+					Object old = params.putIfAbsent(p.getKey(), p.getValue());
+					if (old != null && !old.equals(p.getValue()))
+						conflicts.add(String.format("%s %s: %s is set to %s and %s", e.date, act, p.getKey(), old, p.getValue()));
+				}
+			}
+		}
+		return merged;
+	}
+
+	private static RestrictionMatrix compile(List<Entry> entries, List<RampEntry> ramps, LocalDate start, List<String> activities) {
+
+		Map<String, TreeMap<LocalDate, Map<String, Object>>> merged = merge(entries, new ArrayList<>());
+
+		Set<String> restricted = new LinkedHashSet<>(merged.keySet());
+		ramps.forEach(r -> restricted.addAll(r.activities));
+		for (String act : restricted) {
+			if (!activities.contains(act))
+				log.warn("Policy restricts activity {}, which is not a container", act);
+		}
+
+		int days = 1;
+		for (TreeMap<LocalDate, Map<String, Object>> byDate : merged.values()) {
+			days = Math.max(days, (int) (byDate.lastKey().toEpochDay() - start.toEpochDay()) + 1);
+		}
+
+		int n = activities.size();
+		RestrictionRamp[][] rampsByActivity = new RestrictionRamp[n][];
+		for (int a = 0; a < n; a++) {
+			String act = activities.get(a);
+			rampsByActivity[a] = ramps.stream()
+					.filter(r -> r.activities.contains(act))
+					.map(r -> r.ramp)
+					.sorted(Comparator.comparing(RestrictionRamp::getFirst))
+					.toArray(RestrictionRamp[]::new);
+		}
+
+		for (RampEntry r : ramps) {
+			days = Math.max(days, (int) (r.ramp.getLast().toEpochDay() - start.toEpochDay()) + 1);
+		}
+
+		@SuppressWarnings("unchecked")
+		Map<String, long[]>[] entryDays = new Map[n];
+		for (int a = 0; a < n; a++) {
+			Map<String, List<Long>> byKey = new HashMap<>();
+			for (Map.Entry<LocalDate, Map<String, Object>> e : merged.getOrDefault(activities.get(a), new TreeMap<>()).entrySet()) {
+				for (String key : e.getValue().keySet()) {
+					byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(e.getKey().toEpochDay());
+				}
+			}
+
+			Map<String, long[]> sorted = new HashMap<>();
+			byKey.forEach((key, list) -> sorted.put(key, list.stream().mapToLong(Long::longValue).toArray()));
+			entryDays[a] = sorted;
+		}
+
+		int[] cells = new int[days * n];
+		List<Map<String, Object>> states = new ArrayList<>();
+		Map<Map<String, Object>, Integer> ids = new HashMap<>();
+
+		for (int a = 0; a < n; a++) {
+
+			Iterator<Map.Entry<LocalDate, Map<String, Object>>> it =
+					merged.getOrDefault(activities.get(a), new TreeMap<>()).entrySet().iterator();
+			Map.Entry<LocalDate, Map<String, Object>> next = it.hasNext() ? it.next() : null;
+
+			Map<String, Object> state = Map.of();
+			for (int day = 0; day < days; day++) {
+
+				LocalDate date = start.plusDays(day);
+				if (next != null && !next.getKey().isAfter(date)) {
+					Map<String, Object> update = new TreeMap<>(state);
+					// entries before the start are all applied on the first day
+					while (next != null && !next.getKey().isAfter(date)) {
+						update.putAll(next.getValue());
+						next = it.hasNext() ? it.next() : null;
+					}
+					state = Collections.unmodifiableMap(update);
+				}
+
+				Integer id = ids.get(state);
+				if (id == null) {
+					id = states.size();
+					ids.put(state, id);
+					states.add(state);
+				}
+				cells[day * n + a] = id;
+			}
+		}
+
+		log.info("Compiled policy with {} entries and {} ramps into {} days x {} activities, {} distinct restrictions",
+				entries.size(), ramps.size(), days, n, states.size());
+
+		return new RestrictionMatrix(start, days, activities, cells, states, rampsByActivity, entryDays);
+	}
+
+	private static final class Entry {
+		private final LocalDate date;
+		private final List<String> activities;
+		private final Map<String, Object> params;
+
+		private Entry(LocalDate date, List<String> activities, Map<String, Object> params) {
+			this.date = date;
+			this.activities = activities;
+			this.params = params;
+		}
+	}
+
+	private static final class RampEntry {
+		private final RestrictionRamp ramp;
+		private final List<String> activities;
+
+		private RampEntry(RestrictionRamp ramp, List<String> activities) {
+			this.ramp = ramp;
+			this.activities = activities;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import com.typesafe.config.ConfigFactory;
+import org.matsim.episim.policy.Restriction;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Restrictions of a policy precomputed for every day and activity, see {@link PolicyCompiler}.
+ * <p>
+ * Each cell holds the id of the merged restriction state that is active for an activity on that day,
+ * i.e. all entries up to this day applied in order. Remaining fraction and ci correction are additionally
+ * kept as plain columns, so they can be read without any map lookup.
+ * Days after the last change of the policy return the last state.
+ * <p>
+ * {@link RestrictionRamp Ramps} are not part of the states, they are evaluated on access. As with the fixed policy,
+ * a ramp sets its parameters from its first day on and keeps its last value after its last day,
+ * until an entry on a later day sets the parameter again.
+ */
+public final class RestrictionMatrix {
+
+	private final LocalDate start;
+	private final int days;
+	private final List<String> activities;
+	private final int[] cells;
+	private final List<Map<String, Object>> states;
+	private final double[] remainingFraction;
+	private final double[] ciCorrection;
+	private final RestrictionRamp[][] ramps;
+
+	/**
+	 * Sorted epoch days of the entries setting a parameter, per activity and parameter.
+	 */
+	private final Map<String, long[]>[] entryDays;
+
+	RestrictionMatrix(LocalDate start, int days, List<String> activities, int[] cells, List<Map<String, Object>> states,
+					  RestrictionRamp[][] ramps, Map<String, long[]>[] entryDays) {
+		this.start = start;
+		this.days = days;
+		this.activities = List.copyOf(activities);
+		this.cells = cells;
+		this.states = Collections.unmodifiableList(states);
+		this.ramps = ramps;
+		this.entryDays = entryDays;
+
+		remainingFraction = new double[states.size()];
+		ciCorrection = new double[states.size()];
+		for (int i = 0; i < states.size(); i++) {
+			remainingFraction[i] = number(states.get(i), "fraction");
+			ciCorrection[i] = number(states.get(i), "ciCorrection");
+		}
+	}
+
+	private static double number(Map<String, Object> state, String key) {
+		Object value = state.get(key);
+		return value instanceof Number ? ((Number) value).doubleValue() : 1.0;
+	}
+
+	/**
+	 * Day of the simulation start, which is day 0 of the matrix.
+	 */
+	public LocalDate getStart() {
+		return start;
+	}
+
+	/**
+	 * Number of stored days, the last one is the final state of the policy.
+	 */
+	public int getDays() {
+		return days;
+	}
+
+	public List<String> getActivities() {
+		return activities;
+	}
+
+	/**
+	 * Day index of a date, relative to the start.
+	 */
+	public int day(LocalDate date) {
+		return (int) (date.toEpochDay() - start.toEpochDay());
+	}
+
+	/**
+	 * Id of the merged restriction state. Ids are shared between activities and days with equal state.
+	 */
+	public int state(int day, int activity) {
+		if (activity < 0 || activity >= activities.size())
+			throw new IndexOutOfBoundsException("Unknown activity id " + activity);
+
+		int d = Math.max(0, Math.min(day, days - 1));
+		return cells[d * activities.size() + activity];
+	}
+
+	/**
+	 * Whether the restriction of an activity may be different from the day before. Day 0 is always a change.
+	 */
+	public boolean changed(int day, int activity) {
+		return day <= 0 || state(day, activity) != state(day - 1, activity) || isRamping(day, activity);
+	}
+
+	/**
+	 * Whether a ramp of this activity is between its first and last point.
+	 */
+	public boolean isRamping(int day, int activity) {
+		long epochDay = start.toEpochDay() + Math.max(0, day);
+		for (RestrictionRamp ramp : ramps[activity]) {
+			if (ramp.isActive(epochDay))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Merged parameters of a state, in the form of {@link Restriction#asMap()} without unset entries.
+	 */
+	public Map<String, Object> getState(int state) {
+		return states.get(state);
+	}
+
+	public int getNumberOfStates() {
+		return states.size();
+	}
+
+	public double getRemainingFraction(int day, int activity) {
+		double value = rampValue(day, activity, "fraction");
+		return Double.isNaN(value) ? remainingFraction[state(day, activity)] : value;
+	}
+
+	public double getCiCorrection(int day, int activity) {
+		double value = rampValue(day, activity, "ciCorrection");
+		return Double.isNaN(value) ? ciCorrection[state(day, activity)] : value;
+	}
+
+	/**
+	 * Value of the latest started ramp that sets this parameter, or NaN if there is none or a later entry overrides it.
+	 */
+	private double rampValue(int day, int activity, String key) {
+		RestrictionRamp[] r = ramps[activity];
+		long epochDay = start.toEpochDay() + Math.max(0, day);
+		for (int i = r.length - 1; i >= 0; i--) {
+			double value = r[i].getKeys().contains(key) ? r[i].valueAt(epochDay, key) : Double.NaN;
+			if (!Double.isNaN(value))
+				return isOverridden(activity, key, r[i], epochDay) ? Double.NaN : value;
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Whether an entry after the last day of a finished ramp sets the parameter again.
+	 */
+	private boolean isOverridden(int activity, String key, RestrictionRamp ramp, long epochDay) {
+		long last = ramp.getLast().toEpochDay();
+		if (epochDay <= last)
+			return false;
+
+		long[] d = entryDays[activity].get(key);
+		if (d == null)
+			return false;
+
+		// latest entry at or before this day
+		int i = Arrays.binarySearch(d, epochDay);
+		if (i < 0)
+			i = -i - 2;
+
+		return i >= 0 && d[i] > last;
+	}
+
+	/**
+	 * All parameters set for this day, including the values of ramps.
+	 */
+	public Map<String, Object> params(int day, int activity) {
+		Map<String, Object> state = states.get(state(day, activity));
+		if (ramps[activity].length == 0)
+			return state;
+
+		Map<String, Object> params = new TreeMap<>(state);
+		long epochDay = start.toEpochDay() + Math.max(0, day);
+		for (RestrictionRamp ramp : ramps[activity]) {
+			Map<String, Object> value = ramp.valueAt(epochDay);
+			if (value == null)
+				continue;
+
+			for (Map.Entry<String, Object> e : value.entrySet()) {
+				if (!isOverridden(activity, e.getKey(), ramp, epochDay))
+					params.put(e.getKey(), e.getValue());
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Creates a new restriction object with all parameters that are set for this day.
+	 */
+	public Restriction restriction(int day, int activity) {
+		return Restriction.fromConfig(ConfigFactory.parseMap(params(day, activity)));
+	}
+}
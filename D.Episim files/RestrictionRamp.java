@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.episim.policy.Restriction;
+
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Piecewise linear restriction, e.g. for the gradual introduction of masks.
+ * <p>
+ * A ramp is defined by a few points and evaluated per day, instead of one dated entry per day and activity.
+ * Supported parameters are the remaining fraction, the ci correction and the mask fractions.
+ * Before the first point the ramp sets nothing, after the last point the values of the last point stay active.
+ * Two points at the same date form a step.
+ */
+public final class RestrictionRamp {
+
+	private static final String FRACTION = "fraction";
+	private static final String CI_CORRECTION = "ciCorrection";
+	private static final String MASKS = "masks";
+
+	private final long[] days;
+	private final List<Map<String, Object>> points;
+
+	private RestrictionRamp(long[] days, List<Map<String, Object>> points) {
+		this.days = days;
+		this.points = points;
+	}
+
+	/**
+	 * Starts a ramp with the values of the given restriction.
+	 */
+	public static RestrictionRamp from(LocalDate date, Restriction restriction) {
+		return from(date, PolicyCompiler.params(restriction.asMap()));
+	}
+
+	static RestrictionRamp from(LocalDate date, Map<String, Object> params) {
+		check(params);
+		return new RestrictionRamp(new long[]{date.toEpochDay()}, List.of(params));
+	}
+
+	/**
+	 * Adds a point, values are interpolated linearly between the previous point and this one.
+	 * The restriction has to set the same parameters as the first point.
+	 */
+	public RestrictionRamp to(LocalDate date, Restriction restriction) {
+		return to(date, PolicyCompiler.params(restriction.asMap()));
+	}
+
+	RestrictionRamp to(LocalDate date, Map<String, Object> params) {
+		check(params);
+
+		long day = date.toEpochDay();
+		if (day < days[days.length - 1])
+			throw new IllegalArgumentException("Ramp points must be ordered by date, got " + date + " after " + getLast());
+
+		if (!params.keySet().equals(points.get(0).keySet()))
+			throw new IllegalArgumentException("Ramp points must set the same parameters: " + params.keySet() + " != " + points.get(0).keySet());
+
+		long[] d = Arrays.copyOf(days, days.length + 1);
+		d[days.length] = day;
+
+		List<Map<String, Object>> p = new ArrayList<>(points);
+		p.add(params);
+
+		return new RestrictionRamp(d, Collections.unmodifiableList(p));
+	}
+
+	private static void check(Map<String, Object> params) {
+		if (params.isEmpty())
+			throw new IllegalArgumentException("Ramp restriction does not set any parameter");
+
+		for (String key : params.keySet()) {
+			if (!key.equals(FRACTION) && !key.equals(CI_CORRECTION) && !key.equals(MASKS))
+				throw new IllegalArgumentException("Parameter " + key + " can not be interpolated");
+		}
+	}
+
+	public LocalDate getFirst() {
+		return LocalDate.ofEpochDay(days[0]);
+	}
+
+	public LocalDate getLast() {
+		return LocalDate.ofEpochDay(days[days.length - 1]);
+	}
+
+	/**
+	 * Interpolated parameters.
+	 */
+	public Set<String> getKeys() {
+		return points.get(0).keySet();
+	}
+
+	/**
+	 * Whether the values may change on this day, i.e. it is within the first and last point.
+	 */
+	public boolean isActive(LocalDate date) {
+		return isActive(date.toEpochDay());
+	}
+
+	boolean isActive(long epochDay) {
+		return epochDay >= days[0] && epochDay <= days[days.length - 1];
+	}
+
+	/**
+	 * Parameters at a date, or null before the first point.
+	 */
+	public Map<String, Object> valueAt(LocalDate date) {
+		return valueAt(date.toEpochDay());
+	}
+
+	Map<String, Object> valueAt(long epochDay) {
+		int n = days.length;
+		if (epochDay < days[0])
+			return null;
+
+		if (n == 1)
+			return points.get(0);
+
+		// after the ramp the value of its last day stays, which may differ from the last point in the last digit
+		epochDay = Math.min(epochDay, days[n - 1]);
+
+		// last segment starting at or before the day, so that the later point wins at a step
+		int i = n - 1;
+		while (days[i - 1] > epochDay)
+			i--;
+
+		long span = days[i] - days[i - 1];
+		if (span == 0)
+			return points.get(i);
+
+		Map<String, Object> from = points.get(i - 1);
+		Map<String, Object> to = points.get(i);
+		long t = epochDay - days[i - 1];
+
+		Map<String, Object> value = new TreeMap<>();
+		for (String key : from.keySet()) {
+			if (key.equals(MASKS))
+				value.put(key, interpolateMasks(from.get(key), to.get(key), t, span));
+			else
+				value.put(key, interpolate(number(from.get(key)), number(to.get(key)), t, span));
+		}
+		return value;
+	}
+
+	/**
+	 * Single parameter at a date, or NaN if not set.
+	 */
+	double valueAt(long epochDay, String key) {
+		Map<String, Object> value = valueAt(epochDay);
+		if (value == null || !(value.get(key) instanceof Number))
+			return Double.NaN;
+
+		return ((Number) value.get(key)).doubleValue();
+	}
+
+	private static double interpolate(double from, double to, long t, long span) {
+		return from + (to - from) * t / span;
+	}
+
+	private static Map<String, Object> interpolateMasks(Object from, Object to, long t, long span) {
+		Map<?, ?> a = (Map<?, ?>) from;
+		Map<?, ?> b = (Map<?, ?>) to;
+
+		Set<String> masks = new TreeSet<>();
+		a.keySet().forEach(k -> masks.add(k.toString()));
+		b.keySet().forEach(k -> masks.add(k.toString()));
+
+		Map<String, Object> value = new TreeMap<>();
+		for (String mask : masks) {
+			value.put(mask, interpolate(number(a.get(mask)), number(b.get(mask)), t, span));
+		}
+		return value;
+	}
+
+	private static double number(Object value) {
+		return value == null ? 0 : ((Number) value).doubleValue();
+	}
+
+	LocalDate getDate(int point) {
+		return LocalDate.ofEpochDay(days[point]);
+	}
+
+	List<Map<String, Object>> getPoints() {
+		return points;
+	}
+
+	@Override
+	public String toString() {
+		return "RestrictionRamp{" + getFirst() + " - " + getLast() + ", " + getKeys() + "}";
+	}
+}
@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Module;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.episim.EpisimConfigGroup;
+import org.matsim.episim.ReplayHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Process wide cache for the scenario inputs shared by all Milan runs (facilities, vehicles, households and events).
+ * <p>
+ * Entries are keyed by input path and file checksum, so a modified input is loaded again. Cached objects are shared
+ * between runs and must be treated as read-only, every run keeps its epidemic state in its own episim objects.
+ * Events are shared as parsed, immutable lists only, every run gets its own {@link ReplayHandler} built from its own config.
+ */
+public final class ScenarioInputCache {
+
+	private static final Logger log = LogManager.getLogger(ScenarioInputCache.class);
+
+	private static final ScenarioInputCache INSTANCE = new ScenarioInputCache();
+
+	private static Path emptyEvents;
+
+	private final Map<List<FileKey>, Entry<Scenario>> scenarios = new ConcurrentHashMap<>();
+	private final Map<FileKey, Entry<List<Event>>> events = new ConcurrentHashMap<>();
+	private final Map<Path, Checksum> checksums = new ConcurrentHashMap<>();
+
+	private ScenarioInputCache() {
+	}
+
+	/**
+	 * The cache shared by all runs in this process.
+	 */
+	public static ScenarioInputCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the scenario containing the facilities, vehicles and households of {@code config}.
+	 * These are the only scenario inputs set by the Milan scenarios, so they are the complete key.
+	 */
+	public Scenario scenario(Config config) {
+
+		String facilities = config.facilities().getInputFile();
+		String vehicles = config.vehicles().getVehiclesFile();
+		String households = config.households().getInputFile();
+
+		List<FileKey> key = List.of(key(facilities), key(vehicles), key(households));
+
+		return scenarios.computeIfAbsent(key, k -> new Entry<>(String.join(", ", facilities, vehicles, households), () -> {
+			Config inputs = ConfigUtils.createConfig();
+			inputs.facilities().setInputFile(facilities);
+			inputs.vehicles().setVehiclesFile(vehicles);
+			inputs.households().setInputFile(households);
+			return ScenarioUtils.loadScenario(inputs);
+		})).get();
+	}
+
+	/**
+	 * Returns the events of {@code config}, parsed once per events file. They are read from the {@link BinaryEvents}
+	 * of the file if present and up to date, see {@link BinaryEvents#binaryFileFor(Path)}.
+	 * The list and its events are shared by all runs on the same file and must not be modified.
+	 */
+	public List<Event> events(Config config) {
+
+		String file = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class).getInputEventsFile();
+
+		return events.computeIfAbsent(key(file), k -> new Entry<>(file, () -> {
+
+			Path bin = BinaryEvents.binaryFileFor(Path.of(file));
+			if (isUpToDate(bin, Path.of(file))) {
+				log.info("Reading events from {}", bin);
+				List<Event> read = new ArrayList<>();
+				BinaryEvents.open(bin).forEachEvent(read::add);
+				return Collections.unmodifiableList(read);
+			}
+
+			// only the events file is relevant for parsing, the settings of the run are applied by its own handler
+			EpisimConfigGroup parse = new EpisimConfigGroup();
+			parse.setInputEventsFile(file);
+			List<Event> parsed = new ReplayHandler(parse, scenario(config)).getEvents();
+			return Collections.unmodifiableList(new ArrayList<>(parsed));
+		})).get();
+	}
+
+	/**
+	 * Whether the binary events exist and have been written after the events xml they were converted from.
+	 */
+	private static boolean isUpToDate(Path bin, Path xml) {
+		try {
+			return Files.exists(bin) && Files.getLastModifiedTime(bin).compareTo(Files.getLastModifiedTime(xml)) >= 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Creates a replay handler for a single run with the episim settings of {@code config}. It holds its own list
+	 * referencing the shared {@link #events(Config)}, so only the references are allocated per run.
+	 */
+	public ReplayHandler replayHandler(Config config) {
+
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+		List<Event> shared = events(config);
+		String file = episimConfig.getInputEventsFile();
+
+		// the handler reads its input in the constructor, point it at an empty file to not parse the events again
+		ReplayHandler handler;
+		try {
+			episimConfig.setInputEventsFile(emptyEvents().toString());
+			handler = new ReplayHandler(episimConfig, scenario(config));
+		} finally {
+			episimConfig.setInputEventsFile(file);
+		}
+
+		handler.getEvents().addAll(shared);
+		return handler;
+	}
+
+	/**
+	 * Events file without any events, created once per process.
+	 */
+	private static synchronized Path emptyEvents() {
+		if (emptyEvents == null) {
+			try {
+				Path path = Files.createTempFile("empty", ".xml");
+				path.toFile().deleteOnExit();
+				Files.writeString(path, "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n</events>\n");
+				emptyEvents = path;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return emptyEvents;
+	}
+
+	/**
+	 * Module that binds the cached scenario and a replay handler on the cached events of {@code config}, to be used as
+	 * override of the episim module.
+	 */
+	public Module module(Config config) {
+		return new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(Scenario.class).toInstance(scenario(config));
+				bind(ReplayHandler.class).toInstance(replayHandler(config));
+			}
+		};
+	}
+
+	/**
+	 * Rough estimate of the heap bytes retained by all cached entries, see {@link Entry#bytes}.
+	 */
+	public long sharedBytes() {
+		long bytes = 0;
+		for (Entry<?> e : scenarios.values()) bytes += e.bytes;
+		for (Entry<?> e : events.values()) bytes += e.bytes;
+		return bytes;
+	}
+
+	/**
+	 * Reports bytes shared by all runs versus the bytes each run needs on its own.
+	 * All values are rough estimates: the shared bytes are heap differences measured while loading and the per run
+	 * bytes are derived from the sum of the peak usage of all heap pools, which is an upper bound of the peak heap.
+	 *
+	 * @param runs number of runs that used this cache
+	 */
+	public String report(int runs) {
+
+		// pools reach their peaks at different times, so the sum can only be an upper bound
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+
+		long shared = sharedBytes();
+		long perRun = runs == 0 ? 0 : Math.max(0, peak - shared) / runs;
+
+		StringBuilder b = new StringBuilder("Scenario input cache (rough estimates):\n");
+		for (Entry<?> e : scenarios.values()) b.append("  scenario ").append(e).append('\n');
+		for (Entry<?> e : events.values()) b.append("  events ").append(e).append('\n');
+
+		b.append(String.format("  shared: ~%,d bytes, per run: ~%,d bytes (sum of heap pool peaks %,d bytes for %d runs, ~%,d bytes without sharing)",
+				shared, perRun, peak, runs, runs * (shared + perRun)));
+
+		return b.toString();
+	}
+
+	private FileKey key(String file) {
+		if (file == null)
+			return new FileKey(null, 0);
+
+		Path path = Path.of(file).toAbsolutePath().normalize();
+		try {
+			FileTime modified = Files.getLastModifiedTime(path);
+			long size = Files.size(path);
+
+			// checksum is only computed again if the file has been modified
+			Checksum checksum = checksums.compute(path, (p, c) ->
+					c != null && c.size == size && c.modified.equals(modified) ? c : new Checksum(size, modified, crc(p)));
+
+			return new FileKey(path, checksum.crc);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static long crc(Path path) {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream is = Files.newInputStream(path)) {
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				crc.update(buffer, 0, n);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return crc.getValue();
+	}
+
+	private static final class FileKey {
+
+		private final Path path;
+		private final long checksum;
+
+		private FileKey(Path path, long checksum) {
+			this.path = path;
+			this.checksum = checksum;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			FileKey other = (FileKey) o;
+			return checksum == other.checksum && Objects.equals(path, other.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, checksum);
+		}
+	}
+
+	private static final class Checksum {
+
+		private final long size;
+		private final FileTime modified;
+		private final long crc;
+
+		private Checksum(long size, FileTime modified, long crc) {
+			this.size = size;
+			this.modified = modified;
+			this.crc = crc;
+		}
+	}
+
+	/**
+	 * Lazily loaded cache entry, loading happens only once even if requested by several runs at the same time.
+	 */
+	private static final class Entry<T> {
+
+		private final String name;
+		private final Supplier<T> loader;
+		private volatile T value;
+
+		/**
+		 * Rough estimate of the retained bytes: the heap difference around loading. It includes garbage and
+		 * allocations of other runs loading at the same time, and misses memory freed by a collection in between.
+		 */
+		private long bytes;
+
+		private Entry(String name, Supplier<T> loader) {
+			this.name = name;
+			this.loader = loader;
+		}
+
+		T get() {
+			T v = value;
+			if (v != null)
+				return v;
+
+			synchronized (this) {
+				if (value == null) {
+					MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+					long before = memory.getHeapMemoryUsage().getUsed();
+
+					value = loader.get();
+
+					bytes = Math.max(0, memory.getHeapMemoryUsage().getUsed() - before);
+					log.info("Loaded shared input {} (~{} bytes)", name, bytes);
+				}
+				return value;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: ~%,d bytes", name, bytes);
+		}
+	}
+}
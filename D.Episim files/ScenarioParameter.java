@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.episim.EpisimConfigGroup;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded scalar parameter of a scenario config, used for calibration and sensitivity analysis.
+ */
+public final class ScenarioParameter {
+
+	private final String name;
+	private final double lower;
+	private final double upper;
+	private final BiConsumer<Config, Double> setter;
+
+	public ScenarioParameter(String name, double lower, double upper, BiConsumer<Config, Double> setter) {
+		if (lower > upper)
+			throw new IllegalArgumentException("Lower bound " + lower + " is above upper bound " + upper + " for " + name);
+
+		this.name = name;
+		this.lower = lower;
+		this.upper = upper;
+		this.setter = setter;
+	}
+
+	/**
+	 * Contact intensity of one container, as set by {@link AbstractSnzScenario2020_Milan#setContactIntensities(EpisimConfigGroup)}.
+	 */
+	public static ScenarioParameter contactIntensity(String activity, double lower, double upper) {
+		return new ScenarioParameter(activity, lower, upper, (config, value) ->
+				ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class).getOrAddContainerParams(activity).setContactIntensity(value));
+	}
+
+	/**
+	 * Ci correction of {@link ZonaGialla_Tracciamento}, applied to all activities from {@code date} on.
+	 * The policy of the config is rebuilt with the default builder settings, as fixed or compiled policy like the scenario.
+	 */
+	public static ScenarioParameter zonaGiallaCiCorrection(String date, double lower, double upper) {
+		return new ScenarioParameter("ciCorrection_" + date, lower, upper, (config, value) -> {
+			EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class);
+			ZonaGialla_Tracciamento.BasePolicyBuilder builder = new ZonaGialla_Tracciamento.BasePolicyBuilder(episimConfig);
+			builder.setCiCorrections(Map.of(date, value));
+			AbstractSnzScenario2020_Milan.setPolicy(config, builder.build());
+		});
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public double getLower() {
+		return lower;
+	}
+
+	public double getUpper() {
+		return upper;
+	}
+
+	/**
+	 * Maps a value from [0, 1] into the bounds of this parameter.
+	 */
+	public double scale(double unit) {
+		return lower + unit * (upper - lower);
+	}
+
+	/**
+	 * Clamps a value into the bounds of this parameter.
+	 */
+	public double clamp(double value) {
+		return Math.max(lower, Math.min(upper, value));
+	}
+
+	public void apply(Config config, double value) {
+		setter.accept(config, value);
+	}
+
+	@Override
+	public String toString() {
+		return name + "[" + lower + ", " + upper + "]";
+	}
+}
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.episim.EpisimConfigGroup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Variance based (Sobol) sensitivity analysis of scenario parameters using the Saltelli sampling scheme.
+ * <p>
+ * For {@code k} parameters and {@code N} base samples, {@code N * (k + 2)} runs are simulated in parallel.
+ * All runs use the same random seed (common random numbers), so differences between runs are caused by the parameters only.
+ * First order indices use the estimator of Saltelli (2010), total indices the one of Jansen (1999).
+ */
+public final class SensitivityAnalysis {
+
+	private static final Logger log = LogManager.getLogger(SensitivityAnalysis.class);
+
+	private final Class<? extends AbstractSnzScenario2020_Milan> scenario;
+	private final List<ScenarioParameter> parameters;
+	private final int samples;
+	private final int iterations;
+	private final int threads;
+
+	private String column = "nContagiousCumulative";
+	private long seed = 4711;
+
+	/**
+	 * @param samples number of base samples {@code N}
+	 */
+	public SensitivityAnalysis(Class<? extends AbstractSnzScenario2020_Milan> scenario, List<ScenarioParameter> parameters,
+							   int samples, int iterations, int threads) {
+		this.scenario = scenario;
+		this.parameters = parameters;
+		this.samples = samples;
+		this.iterations = iterations;
+		this.threads = threads;
+	}
+
+	/**
+	 * Contact intensities of all containers of the Milan scenarios, varied by {@code +/- range} around their configured value.
+	 */
+	public static List<ScenarioParameter> contactIntensities(Class<? extends AbstractSnzScenario2020_Milan> scenario, double range) {
+
+		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(MultiScenarioRunner.instantiate(scenario).config(), EpisimConfigGroup.class);
+
+		List<String> activities = new ArrayList<>(List.of(AbstractSnzScenario2020_Milan.DEFAULT_ACTIVITIES));
+		activities.addAll(List.of("home", "quarantine_home", "pt"));
+
+		List<ScenarioParameter> parameters = new ArrayList<>();
+		for (String act : activities) {
+			double value = episimConfig.getOrAddContainerParams(act).getContactIntensity();
+			parameters.add(ScenarioParameter.contactIntensity(act, value * (1 - range), value * (1 + range)));
+		}
+		return parameters;
+	}
+
+	/**
+	 * Output column of {@code infections.txt}, its value on the last day is the analysed outcome.
+	 */
+	public void setColumn(String column) {
+		this.column = column;
+	}
+
+	/**
+	 * Seed of the sample matrices and of all simulation runs.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs all evaluations and writes {@code sobol.tsv} and {@code samples.tsv}.
+	 *
+	 * @return first order (index 0) and total (index 1) indices for every parameter
+	 */
+	public double[][] run() throws InterruptedException, IOException {
+
+		int k = parameters.size();
+		SplittableRandom rnd = new SplittableRandom(seed);
+
+		double[][] a = new double[samples][k];
+		double[][] b = new double[samples][k];
+		for (int j = 0; j < samples; j++) {
+			for (int i = 0; i < k; i++) {
+				a[j][i] = parameters.get(i).scale(rnd.nextDouble());
+				b[j][i] = parameters.get(i).scale(rnd.nextDouble());
+			}
+		}
+
+		// rows: A, B, then AB_i for every parameter i
+		List<double[]> points = new ArrayList<>();
+		for (double[] x : a) points.add(x);
+		for (double[] x : b) points.add(x);
+		for (int i = 0; i < k; i++) {
+			for (int j = 0; j < samples; j++) {
+				double[] x = a[j].clone();
+				x[i] = b[j][i];
+				points.add(x);
+			}
+		}
+
+		Path output = Path.of(MultiScenarioRunner.instantiate(scenario).config().controler().getOutputDirectory() + "-sobol");
+		Files.createDirectories(output);
+
+		log.info("Running {} evaluations for {} parameters", points.size(), k);
+		double[] y = evaluate(points, output);
+
+		double[] fA = new double[samples];
+		double[] fB = new double[samples];
+		System.arraycopy(y, 0, fA, 0, samples);
+		System.arraycopy(y, samples, fB, 0, samples);
+
+		double variance = variance(fA, fB);
+		double[][] indices = new double[2][k];
+		for (int i = 0; i < k; i++) {
+			double first = 0;
+			double total = 0;
+			for (int j = 0; j < samples; j++) {
+				double fABi = y[(2 + i) * samples + j];
+				first += fB[j] * (fABi - fA[j]);
+				total += (fA[j] - fABi) * (fA[j] - fABi);
+			}
+			indices[0][i] = variance > 0 ? first / samples / variance : 0;
+			indices[1][i] = variance > 0 ? total / (2 * samples) / variance : 0;
+		}
+
+		try (BufferedWriter writer = Files.newBufferedWriter(output.resolve("samples.tsv"))) {
+			for (ScenarioParameter p : parameters) writer.write(p.getName() + "\t");
+			writer.write(column);
+			writer.newLine();
+			for (int j = 0; j < points.size(); j++) {
+				for (double v : points.get(j)) writer.write(v + "\t");
+				writer.write(Double.toString(y[j]));
+				writer.newLine();
+			}
+		}
+
+		try (BufferedWriter writer = Files.newBufferedWriter(output.resolve("sobol.tsv"))) {
+			writer.write("parameter\tfirstOrder\ttotal");
+			writer.newLine();
+			for (int i = 0; i < k; i++) {
+				writer.write(parameters.get(i).getName() + "\t" + indices[0][i] + "\t" + indices[1][i]);
+				writer.newLine();
+			}
+		}
+
+		return indices;
+	}
+
+	private double[] evaluate(List<double[]> points, Path output) throws InterruptedException {
+
+		List<Callable<Double>> tasks = new ArrayList<>();
+		for (int j = 0; j < points.size(); j++) {
+			double[] x = points.get(j);
+			Path dir = output.resolve("run" + j);
+			tasks.add(() -> {
+				AbstractSnzScenario2020_Milan module = MultiScenarioRunner.instantiate(scenario);
+				Config config = module.config();
+				for (int i = 0; i < x.length; i++) {
+					parameters.get(i).apply(config, x[i]);
+				}
+
+				config.controler().setOutputDirectory(dir.toString());
+				// common random numbers: every evaluation uses the same seed
+				config.global().setRandomSeed(seed);
+
+				MultiScenarioRunner.runScenario(module, config, iterations, ScenarioInputCache.get().module(config));
+				try {
+					SortedMap<Integer, double[]> values = InfectionsOutput.read(dir, List.of(column));
+					return values.get(values.lastKey())[0];
+				} finally {
+					EnsembleRunner.delete(dir);
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Double>> futures = executor.invokeAll(tasks);
+			double[] y = new double[futures.size()];
+			for (int j = 0; j < y.length; j++) {
+				try {
+					y[j] = futures.get(j).get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Evaluation " + j + " failed", e.getCause());
+				}
+			}
+			return y;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static double variance(double[] fA, double[] fB) {
+		OnlineStats stats = new OnlineStats();
+		for (double v : fA) stats.add(v);
+		for (double v : fB) stats.add(v);
+		return stats.getVariance();
+	}
+
+	/**
+	 * Usage: {@code SensitivityAnalysis <scenario> <samples> <iterations> <threads>}
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		if (args.length < 4) {
+			System.err.println("Usage: SensitivityAnalysis <scenario> <samples> <iterations> <threads>");
+			System.exit(1);
+		}
+
+		Class<? extends AbstractSnzScenario2020_Milan> scenario = MultiScenarioRunner.scenarioClass(args[0]);
+		List<ScenarioParameter> parameters = contactIntensities(scenario, 0.5);
+
+		SensitivityAnalysis analysis = new SensitivityAnalysis(scenario, parameters,
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+
+		double[][] indices = analysis.run();
+		for (int i = 0; i < parameters.size(); i++) {
+			System.out.printf("%-16s S1=%.3f ST=%.3f%n", parameters.get(i).getName(), indices[0][i], indices[1][i]);
+		}
+	}
+}
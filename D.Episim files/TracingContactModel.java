@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.episim.EpisimContainer;
+import org.matsim.episim.EpisimPerson;
+import org.matsim.episim.InfectionEventHandler;
+import org.matsim.episim.model.ContactModel;
+import org.matsim.episim.policy.Restriction;
+
+import java.util.Map;
+
+/**
+ * Contact model that records the traceable contacts of a person leaving a container in the {@link ContactRingBuffer},
+ * and leaves the infection dynamics to the wrapped model.
+ * <p>
+ * The duration of a contact is the time both persons spent in the container, as in the episim contact models.
+ */
+public final class TracingContactModel implements ContactModel {
+
+	private final ContactModel delegate;
+	private final ContactRingBuffer contacts;
+
+	private int iteration;
+
+	public TracingContactModel(ContactModel delegate, ContactRingBuffer contacts) {
+		this.delegate = delegate;
+		this.contacts = contacts;
+	}
+
+	@Override
+	public void notifyEnterVehicle(EpisimPerson personEnteringVehicle, InfectionEventHandler.EpisimVehicle vehicle, double now) {
+		delegate.notifyEnterVehicle(personEnteringVehicle, vehicle, now);
+	}
+
+	@Override
+	public void notifyEnterFacility(EpisimPerson personEnteringFacility, InfectionEventHandler.EpisimFacility facility, double now) {
+		delegate.notifyEnterFacility(personEnteringFacility, facility, now);
+	}
+
+	@Override
+	public void infectionDynamicsVehicle(EpisimPerson personLeavingVehicle, InfectionEventHandler.EpisimVehicle vehicle, double now) {
+		record(personLeavingVehicle, vehicle, now);
+		delegate.infectionDynamicsVehicle(personLeavingVehicle, vehicle, now);
+	}
+
+	@Override
+	public void infectionDynamicsFacility(EpisimPerson personLeavingFacility, InfectionEventHandler.EpisimFacility facility, double now) {
+		record(personLeavingFacility, facility, now);
+		delegate.infectionDynamicsFacility(personLeavingFacility, facility, now);
+	}
+
+	private void record(EpisimPerson personLeaving, EpisimContainer<?> container, double now) {
+		if (!personLeaving.isTraceable())
+			return;
+
+		double entered = container.getContainerEnteringTime(personLeaving.getPersonId());
+		for (EpisimPerson contact : container.getPersons()) {
+			if (contact == personLeaving)
+				continue;
+
+			double joint = now - Math.max(entered, container.getContainerEnteringTime(contact.getPersonId()));
+			contacts.addContact(personLeaving, contact, iteration, joint);
+		}
+	}
+
+	@Override
+	public void setIteration(int iteration) {
+		this.iteration = iteration;
+		delegate.setIteration(iteration);
+	}
+
+	@Override
+	public void setRestrictionsForIteration(int iteration, Map<String, Restriction> restrictions) {
+		delegate.setRestrictionsForIteration(iteration, restrictions);
+	}
+}
@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * MATSim Episim
+ * %%
+ * Copyright (C) 2020 matsim-org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.matsim.run.modules;
+
+import org.matsim.episim.TracingConfigGroup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Queues detected cases and traces them within the daily capacity of the tracing config.
+ * <p>
+ * The sparse capacity map is expanded once into one int per day up to its last entry, which stays valid for all
+ * later days. Pending cases are held in a bounded
+ * primitive heap, either oldest detection or most contacts first. Each day at most the capacity is traced,
+ * the remaining cases are carried over, cases older than the maximum delay or not fitting into the queue are dropped.
+ * Queued, traced and dropped cases are counted per day, the metrics grow with the simulated days.
+ */
+public final class TracingScheduler {
+
+	private final LocalDate start;
+	private final int[] capacity;
+	private final Priority priority;
+	private final int maxDelay;
+
+	/**
+	 * Heap ordered by key, with priority in the upper and person in the lower 32 bits.
+	 */
+	private final long[] keys;
+	private final int[] detected;
+	private int size = 0;
+
+	private int[] queued = new int[0];
+	private int[] traced = new int[0];
+	private int[] dropped = new int[0];
+	private int[] pending = new int[0];
+
+	/**
+	 * Number of days with metrics, i.e. last day seen + 1.
+	 */
+	private int days = 0;
+
+	/**
+	 * @param capacity  persons traced per day, valid from the given date on. Before the first date nothing is traced.
+	 * @param queueSize maximum number of pending cases
+	 * @param maxDelay  days after detection when tracing a case is not useful anymore
+	 */
+	public TracingScheduler(LocalDate start, Map<LocalDate, Integer> capacity, int queueSize, Priority priority, int maxDelay) {
+		if (queueSize < 1)
+			throw new IllegalArgumentException("Queue size must be at least 1");
+
+		this.start = start;
+		this.capacity = expand(start, capacityDays(start, capacity), capacity);
+		this.priority = priority;
+		this.maxDelay = maxDelay;
+
+		keys = new long[queueSize];
+		detected = new int[queueSize];
+	}
+
+	/**
+	 * Creates a scheduler with the capacity of the tracing config. Cases are kept as long as the tracing period.
+	 */
+	public static TracingScheduler create(TracingConfigGroup tracingConfig, LocalDate start, int queueSize, Priority priority) {
+		return new TracingScheduler(start, tracingConfig.getTracingCapacity(), queueSize, priority, tracingConfig.getTracingPeriod_days());
+	}
+
+	/**
+	 * Number of days until the last entry of the capacity map, at least one.
+	 */
+	private static int capacityDays(LocalDate start, Map<LocalDate, Integer> capacity) {
+		long days = 1;
+		for (LocalDate d : capacity.keySet()) {
+			days = Math.max(days, ChronoUnit.DAYS.between(start, d) + 1);
+		}
+		return Math.toIntExact(days);
+	}
+
+	/**
+	 * Capacity of each day, from the latest entry at or before that day.
+	 */
+	static int[] expand(LocalDate start, int days, Map<LocalDate, Integer> capacity) {
+		int[] result = new int[days];
+		for (int day = 0; day < days; day++) {
+			LocalDate date = start.plusDays(day);
+			LocalDate valid = null;
+			for (LocalDate d : capacity.keySet()) {
+				if (!d.isAfter(date) && (valid == null || d.isAfter(valid)))
+					valid = d;
+			}
+			result[day] = valid == null ? 0 : capacity.get(valid);
+		}
+		return result;
+	}
+
+	public int getCapacity(int day) {
+		if (day < 0)
+			return 0;
+
+		return capacity[Math.min(day, capacity.length - 1)];
+	}
+
+	/**
+	 * Validates the day and grows the daily metrics to include it.
+	 */
+	private void ensureDay(int day) {
+		if (day < 0)
+			throw new IllegalArgumentException("Day must not be negative: " + day);
+
+		if (day >= queued.length) {
+			int length = Math.max(day + 1, queued.length * 2);
+			queued = Arrays.copyOf(queued, length);
+			traced = Arrays.copyOf(traced, length);
+			dropped = Arrays.copyOf(dropped, length);
+			pending = Arrays.copyOf(pending, length);
+		}
+
+		days = Math.max(days, day + 1);
+	}
+
+	/**
+	 * Queues a detected case.
+	 *
+	 * @param contacts number of traceable contacts, used for {@link Priority#mostContacts}
+	 * @return whether the case is pending
+	 */
+	public boolean add(int person, int day, int contacts) {
+		ensureDay(day);
+		queued[day]++;
+
+		long p = priority == Priority.oldest ? day : Integer.MAX_VALUE - contacts;
+		long key = (p << 32) | (person & 0xffffffffL);
+
+		if (size == keys.length) {
+			// full heap, the worst case is one of the leaves
+			int worst = size / 2;
+			for (int i = size / 2 + 1; i < size; i++) {
+				if (keys[i] > keys[worst])
+					worst = i;
+			}
+
+			dropped[day]++;
+			if (key >= keys[worst])
+				return false;
+
+			remove(worst);
+		}
+
+		keys[size] = key;
+		detected[size] = day;
+		up(size++);
+		return true;
+	}
+
+	/**
+	 * Traces pending cases in order of priority until the capacity of the day is used up.
+	 *
+	 * @return number of traced cases
+	 */
+	public int process(int day, IntConsumer tracer) {
+		ensureDay(day);
+		int cap = getCapacity(day);
+		int n = 0;
+
+		while (size > 0 && n < cap) {
+			long key = keys[0];
+			int detectedDay = detected[0];
+			remove(0);
+
+			if (day - detectedDay > maxDelay) {
+				dropped[day]++;
+				continue;
+			}
+
+			tracer.accept((int) key);
+			n++;
+		}
+
+		traced[day] = n;
+		pending[day] = size;
+		return n;
+	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public int getPending() {
+		return size;
+	}
+
+	private void remove(int i) {
+		size--;
+		if (i == size)
+			return;
+
+		keys[i] = keys[size];
+		detected[i] = detected[size];
+		if (i > 0 && keys[i] < keys[(i - 1) / 2])
+			up(i);
+		else
+			down(i);
+	}
+
+	private void up(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (keys[parent] <= keys[i])
+				break;
+
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void down(int i) {
+		while (true) {
+			int min = i;
+			int l = 2 * i + 1;
+			int r = l + 1;
+			if (l < size && keys[l] < keys[min]) min = l;
+			if (r < size && keys[r] < keys[min]) min = r;
+			if (min == i)
+				return;
+
+			swap(i, min);
+			i = min;
+		}
+	}
+
+	private void swap(int a, int b) {
+		long k = keys[a];
+		keys[a] = keys[b];
+		keys[b] = k;
+		int d = detected[a];
+		detected[a] = detected[b];
+		detected[b] = d;
+	}
+
+	/**
+	 * Writes the daily metrics as tsv.
+	 */
+	public void write(Path file) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+			writer.write("day\tdate\tcapacity\tqueued\ttraced\tdropped\tpending");
+			writer.newLine();
+			for (int day = 0; day < days; day++) {
+				writer.write(String.format("%d\t%s\t%d\t%d\t%d\t%d\t%d", day, start.plusDays(day), getCapacity(day),
+						queued[day], traced[day], dropped[day], pending[day]));
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Order in which pending cases are traced.
+	 */
+	public enum Priority {
+		/**
+		 * Earliest detection first.
+		 */
+		oldest,
+		/**
+		 * Cases with the most traceable contacts first.
+		 */
+		mostContacts
+	}
+}
@@ -29,8 +29,6 @@ import org.matsim.episim.model.FaceMask;
 import org.matsim.episim.model.Transition;
 import org.matsim.episim.model.input.ActivityParticipation;
 import org.matsim.episim.model.input.CreateRestrictionsFromCSV;
-import org.matsim.episim.policy.FixedPolicy;
-import org.matsim.episim.policy.FixedPolicy.ConfigBuilder;
 import org.matsim.episim.policy.Restriction;
 
 import javax.inject.Singleton;
@@ -43,13 +41,13 @@ public final class ZonaGialla extends AbstractSnzScenario2020_Milan {
 
 	public static Path INPUT = EpisimUtils.resolveInputPath("./episim-input");
 
-	private static ConfigBuilder basePolicy(ActivityParticipation activityParticipation, Map<String, Double> ciCorrections,
+	private static PolicyCompiler basePolicy(ActivityParticipation activityParticipation, Map<String, Double> ciCorrections,
 			 											long introductionPeriod, Double maskCompliance, boolean restrictSchoolsAndDayCare,
 														boolean restrictUniversities, boolean restrictNoEssentials) throws IOException {
 
-		ConfigBuilder restrictions;
+		PolicyCompiler restrictions;
 
-		restrictions = FixedPolicy.config(); //Non ho una policy passata, la creo nuova
+		restrictions = new PolicyCompiler(); //Non ho una policy passata, la creo nuova
 
 		if (restrictSchoolsAndDayCare) {  //Applica restrizioni scolastiche
 			restrictions.restrict("2020-03-04", Restriction.of(0), "school");
@@ -91,11 +89,11 @@ public final class ZonaGialla extends AbstractSnzScenario2020_Milan {
 		double clothFraction = maskCompliance * 0.9;
 		double surgicalFraction = maskCompliance * 0.1;
 
-		for (int ii = 0; ii <= introductionPeriod; ii++) {  //Funzione che introduce gradualmente l'uso di mascherine
-			LocalDate date = masksCenterDate.plusDays(-introductionPeriod / 2 + ii);
-			restrictions.restrict(date, Restriction.ofMask(Map.of(FaceMask.CLOTH, clothFraction * ii / introductionPeriod,
-					FaceMask.SURGICAL, surgicalFraction * ii / introductionPeriod)), AbstractSnzScenario2020_Milan.DEFAULT_ACTIVITIES);
-		}
+		LocalDate masksStart = masksCenterDate.plusDays(-introductionPeriod / 2);
+		restrictions.ramp(RestrictionRamp  //Introduce gradualmente l'uso di mascherine, valutato giorno per giorno
+				.from(masksStart, Restriction.ofMask(Map.of(FaceMask.CLOTH, 0., FaceMask.SURGICAL, 0.)))
+				.to(masksStart.plusDays(introductionPeriod), Restriction.ofMask(Map.of(FaceMask.CLOTH, clothFraction,
+						FaceMask.SURGICAL, surgicalFraction))), AbstractSnzScenario2020_Milan.DEFAULT_ACTIVITIES);
 
 		return restrictions;
 	}
@@ -111,7 +109,7 @@ public final class ZonaGialla extends AbstractSnzScenario2020_Milan {
 
 		EpisimConfigGroup episimConfig = ConfigUtils.addOrGetModule(config, EpisimConfigGroup.class); //Config episim (contenitore)
 
-		episimConfig.setInputEventsFile(INPUT.resolve("output_events-0.25.xml.gz").toString()); //Importa eventi da file
+		episimConfig.setInputEventsFile(inputEvents(INPUT, "output_events-0.25.xml.gz")); //Importa eventi da file
 
 		episimConfig.setInitialInfections(5); //Dichiara 5 agenti come infetti iniziali
 		episimConfig.setSampleSize(0.25); //Dichiara la grandezza del sample (1 => 100 persone = 100 agenti)
@@ -122,7 +120,7 @@ public final class ZonaGialla extends AbstractSnzScenario2020_Milan {
 
 		BasePolicyBuilder basePolicyBuilder = new BasePolicyBuilder(episimConfig);   //Creazione politica sulla base di episimConfig
 
-		episimConfig.setPolicy(FixedPolicy.class, basePolicyBuilder.build().build());
+		setPolicy(config, basePolicyBuilder.build());
 
 		config.controler().setOutputDirectory("./output-ZonaGialla");
 
@@ -180,8 +178,8 @@ public final class ZonaGialla extends AbstractSnzScenario2020_Milan {
 			this.restrictUniversities = restrictUniversities;
 		}
 
-		public ConfigBuilder build() {
-			ConfigBuilder configBuilder = null;
+		public PolicyCompiler build() {
+			PolicyCompiler configBuilder = null;
 			try {
 				configBuilder = basePolicy(activityParticipation, ciCorrections,introductionPeriod,   //Crea policy base fornendo i valori scritti
 						maskCompliance, restrictSchoolsAndDayCare, restrictUniversities, restrictNoEssentials);